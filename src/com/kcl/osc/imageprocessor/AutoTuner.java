@@ -0,0 +1,450 @@
+package com.kcl.osc.imageprocessor;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class chooses the concurrency settings (TuningProfile) for each filter and image size class.
+ *
+ * At startup it runs a short calibration on a synthetic image of each required size class: first it finds the
+ * slice height that filters an image fastest, then the number of inner processors that gives the shortest
+ * predicted time for a batch that keeps every processor busy, trading intra-image parallelism (more rows at the
+ * same time) against inter-image parallelism (more images at the same time).
+ * Slice heights below the minimum of the filter (2 * radius + 1 for rank filters and box blurs) are not tried,
+ * and the slice height of filters applied with the FFT is neither calibrated nor refined, as they do not use it.
+ *
+ * Only the inner processors and the slice height are saved, as they depend on the host and not on the workload.
+ * The pool size is worked out for each run from the number of images and the number of processors.
+ *
+ * While the application runs, ImageProcessorMT reports the measured slice latencies and the tuner refines the
+ * slice height: slices that finish too fast are dominated by thread start up, slices that take too long
+ * balance the work badly. Each image reads the profile when its processing starts, so the images that start
+ * after a change already use the new height.
+ *
+ * Chosen profiles are saved to a file in the user's home directory, one file per host, so later runs
+ * start tuned. The file is ignored if the number of processors of the host has changed.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.1
+ */
+public class AutoTuner {
+
+    /**
+     * Size classes of images. Images of the same class share one profile.
+     */
+    public enum SizeClass {
+        TINY(4 * 1024, 32),
+        SMALL(64 * 1024, 128),
+        MEDIUM(1024 * 1024, 256),
+        LARGE(Integer.MAX_VALUE, 512);
+
+        // Largest number of pixels an image of this class has.
+        private final int maxPixels;
+        // Side of the square synthetic image used to calibrate this class.
+        private final int calibrationSide;
+
+        SizeClass(int maxPixels, int calibrationSide) {
+            this.maxPixels = maxPixels;
+            this.calibrationSide = calibrationSide;
+        }
+
+        /**
+         * Used to get the size class of an image with the given number of pixels.
+         * @param pixels Number of pixels.
+         * @return The size class.
+         */
+        public static SizeClass of(long pixels) {
+            for (SizeClass sizeClass : values()) {
+                if (pixels <= sizeClass.maxPixels) {
+                    return sizeClass;
+                }
+            }
+            return LARGE;
+        }
+    }
+
+    // Slice heights tried during the calibration.
+    private static final int[] CALIBRATION_ROWS_PER_SLICE = {1, 4, 16, 64};
+    // Slices faster than this (in ns) are dominated by starting their thread, so they are made taller.
+    private static final long MIN_SLICE_NANOS = 500_000;
+    // Slices slower than this (in ns) balance the work badly, so they are made shorter.
+    private static final long MAX_SLICE_NANOS = 5_000_000;
+    // Number of measurements after which the slice height can be changed.
+    private static final int SAMPLES_BEFORE_REFINING = 3;
+    // Weight of a new measurement in the moving average of the slice latency.
+    private static final double SMOOTHING = 0.3;
+
+    // A lock to prevent multiple image processors from modifying the profiles simultaneously.
+    private final ReentrantLock lock = new ReentrantLock();
+    // File in which the profiles of this host are stored.
+    private final File profileFile;
+    // Number of processors available to the application.
+    private final int cores;
+    // Chosen profile for each "FILTER.SIZECLASS" key.
+    private final HashMap<String, TuningProfile> profiles = new HashMap<>();
+    // Moving average of the slice latency (in ns) for each key.
+    private final HashMap<String, Double> averageSliceNanos = new HashMap<>();
+    // Number of measurements in the moving average for each key.
+    private final HashMap<String, Integer> samples = new HashMap<>();
+
+    /**
+     * Constructor of the AutoTuner. Loads the saved profiles from the given file if it exists.
+     * @param profileFile File in which the profiles are stored.
+     */
+    public AutoTuner(File profileFile) {
+        this.profileFile = profileFile;
+        this.cores = Runtime.getRuntime().availableProcessors();
+        load();
+    }
+
+    /**
+     * Used to create a tuner which stores its profiles in the home directory of the user,
+     * in a file named after this host.
+     * @return The tuner.
+     */
+    public static AutoTuner forThisHost() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        File directory = new File(System.getProperty("user.home"), ".imageprocessor");
+        return new AutoTuner(new File(directory, "profile-" + host + ".properties"));
+    }
+
+    /**
+     * Used to make sure that there is a profile for the filter and each size class of the given areas.
+     * Size classes that have no saved profile are calibrated and the profiles are saved. A class whose calibration
+     * image the filter cannot be applied to keeps the default profile.
+     * @param filter The filter that will be applied.
+     * @param areas Number of pixels filtered in each image (the area of its regions of interest).
+     */
+    public void calibrate(String filter, long[] areas) {
+        HashSet<SizeClass> sizeClasses = new HashSet<>();
+        for (long area : areas) {
+            sizeClasses.add(SizeClass.of(area));
+        }
+        boolean calibrated = false;
+        for (SizeClass sizeClass : sizeClasses) {
+            if (getSavedProfile(filter, sizeClass) == null) {
+                TuningProfile profile;
+                try {
+                    profile = calibrateClass(filter, sizeClass);
+                } catch (IllegalArgumentException e) {
+                    // E.g. the radius of the filter is too large for the calibration image. The class keeps the default.
+                    System.out.println("Could not calibrate " + filter.toUpperCase() + " for " + sizeClass + " images: "
+                            + e.getMessage());
+                    continue;
+                }
+                System.out.println("Calibrated " + filter.toUpperCase() + " for " + sizeClass + " images: " + profile + ".");
+                setProfile(filter, sizeClass, profile);
+                calibrated = true;
+            }
+        }
+        if (calibrated) {
+            save();
+        }
+    }
+
+    /**
+     * Used to get the profile for applying the filter to an area with the given number of pixels.
+     * @param filter The filter that will be applied.
+     * @param pixels Number of pixels to filter.
+     * @return The profile, TuningProfile.DEFAULT if there is none.
+     */
+    public TuningProfile getProfile(String filter, long pixels) {
+        TuningProfile profile = getSavedProfile(filter, SizeClass.of(pixels));
+        return profile == null ? TuningProfile.DEFAULT : profile;
+    }
+
+    /**
+     * Used to get the pool size for processing images with the given areas. The processors are shared between the images
+     * processed at the same time, so the size class that holds most of the pixels decides how many of them one image
+     * uses. The pool is never larger than the number of images.
+     * @param filter The filter that will be applied.
+     * @param areas Number of pixels filtered in each image (the area of its regions of interest).
+     * @return The pool size.
+     */
+    public int getPoolSize(String filter, long[] areas) {
+        HashMap<SizeClass, Long> pixelsPerClass = new HashMap<>();
+        for (long area : areas) {
+            pixelsPerClass.merge(SizeClass.of(area), area, Long::sum);
+        }
+        SizeClass dominant = null;
+        for (SizeClass sizeClass : pixelsPerClass.keySet()) {
+            if (dominant == null || pixelsPerClass.get(sizeClass) > pixelsPerClass.get(dominant)) {
+                dominant = sizeClass;
+            }
+        }
+        if (dominant == null) {
+            return TuningProfile.DEFAULT.getPoolSize();
+        }
+        return Math.max(1, Math.min(areas.length, getProfile(filter, dominant.maxPixels).getPoolSize()));
+    }
+
+    /**
+     * Used by the ImageProcessorMT to report the measured latency of its slices.
+     * The slice height of the profile is refined when the slices are too fast or too slow. It is never made taller
+     * than the image or the calibration image of the size class, so the refinement stops once one slice covers
+     * the whole image.
+     * @param filter The filter that was applied.
+     * @param pixels Number of pixels that were filtered.
+     * @param minRows Smallest slice height of the filter. Shorter slices of the profile are raised to it.
+     * @param rows Number of rows of the largest region that was filtered (its width, as the slices step along x).
+     * @param rowsPerSlice Slice height that was used.
+     * @param sliceNanos Average time (in ns) one slice took.
+     */
+    public void record(String filter, long pixels, int minRows, int rows, int rowsPerSlice, long sliceNanos) {
+        SizeClass sizeClass = SizeClass.of(pixels);
+        String key = key(filter, sizeClass);
+        lock.lock();
+        try {
+            TuningProfile profile = profiles.get(key);
+            if (profile == null || Math.max(profile.getRowsPerSlice(), minRows) != rowsPerSlice) {
+                // The measurement was made with a profile that is no longer used.
+                return;
+            }
+            double average = averageSliceNanos.getOrDefault(key, (double) sliceNanos);
+            average = SMOOTHING * sliceNanos + (1 - SMOOTHING) * average;
+            int count = samples.getOrDefault(key, 0) + 1;
+            averageSliceNanos.put(key, average);
+            samples.put(key, count);
+            if (count < SAMPLES_BEFORE_REFINING) {
+                return;
+            }
+            // Tallest useful slice.
+            int maxRows = Math.min(sizeClass.calibrationSide, rows);
+            if (average < MIN_SLICE_NANOS && rowsPerSlice < maxRows) {
+                profiles.put(key, profile.withRowsPerSlice(Math.min(rowsPerSlice * 2, maxRows)));
+            }
+            else if (average > MAX_SLICE_NANOS && rowsPerSlice > minRows) {
+                profiles.put(key, profile.withRowsPerSlice(Math.max(rowsPerSlice / 2, minRows)));
+            }
+            else {
+                return;
+            }
+            // Start measuring the new slice height from scratch.
+            averageSliceNanos.remove(key);
+            samples.remove(key);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Used to save the profiles to the profile file.
+     */
+    public void save() {
+        Properties properties = new Properties();
+        lock.lock();
+        try {
+            properties.setProperty("cores", Integer.toString(cores));
+            for (String key : profiles.keySet()) {
+                TuningProfile profile = profiles.get(key);
+                properties.setProperty(key + ".innerProcessors", Integer.toString(profile.getInnerProcessors()));
+                properties.setProperty(key + ".rowsPerSlice", Integer.toString(profile.getRowsPerSlice()));
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        File directory = profileFile.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Could not create directory " + directory + " for the tuning profile.");
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(profileFile)) {
+            properties.store(out, "Image processor tuning profile");
+        } catch (IOException e) {
+            System.out.println("Could not save the tuning profile: " + e.getMessage());
+        }
+    }
+
+    //       ==========   PRIVATE METHODS   ==========
+
+    /**
+     * Loads the saved profiles from the profile file. Profiles saved on a host with a different
+     * number of processors are ignored.
+     */
+    private void load() {
+        if (!profileFile.isFile()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(profileFile)) {
+            properties.load(in);
+        } catch (IOException e) {
+            System.out.println("Could not load the tuning profile: " + e.getMessage());
+            return;
+        }
+        if (!Integer.toString(cores).equals(properties.getProperty("cores"))) {
+            return;
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.endsWith(".innerProcessors")) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - ".innerProcessors".length());
+            try {
+                SizeClass sizeClass = SizeClass.valueOf(key.substring(key.lastIndexOf('.') + 1));
+                int inner = Integer.parseInt(properties.getProperty(key + ".innerProcessors"));
+                int rows = Integer.parseInt(properties.getProperty(key + ".rowsPerSlice"));
+                profiles.put(key, new TuningProfile(getPoolSize(inner), inner, Math.min(rows, sizeClass.calibrationSide)));
+            } catch (IllegalArgumentException e) {
+                // A broken entry is calibrated again.
+            }
+        }
+    }
+
+    /**
+     * Finds the profile for the filter and size class by timing the filter on a synthetic image.
+     * @param filter The filter to calibrate.
+     * @param sizeClass The size class to calibrate.
+     * @return The fastest profile.
+     */
+    private TuningProfile calibrateClass(String filter, SizeClass sizeClass) {
+        Image sample = createSample(sizeClass.calibrationSide);
+        int maxInnerProcessors = Math.min(2 * cores, 32);
+        ImageProcessorMT probe = new ImageProcessorMT(sample, filter, false, null, TuningProfile.DEFAULT);
+        // Shorter slices than this are raised to it by the filter, so they are not tried.
+        int minRows = probe.getMinimumRowsPerSlice();
+
+        // Stage 1: the slice height that filters the image fastest with all the processors busy.
+        // The FFT does not use the slice height, and a filter whose slices are at least as tall as the image
+        // has only one choice.
+        int bestRows = minRows;
+        if (!probe.usesFFT() && minRows < sizeClass.calibrationSide) {
+            long bestTime = measure(sample, filter, new TuningProfile(1, cores, minRows));
+            for (int rows : CALIBRATION_ROWS_PER_SLICE) {
+                if (rows <= minRows) {
+                    continue;
+                }
+                if (rows > sizeClass.calibrationSide) {
+                    // Taller slices than the image are the same as one slice.
+                    break;
+                }
+                long time = measure(sample, filter, new TuningProfile(1, cores, rows));
+                if (time < bestTime) {
+                    bestTime = time;
+                    bestRows = rows;
+                }
+            }
+        }
+
+        // Stage 2: the split between images processed at the same time and rows of one image
+        // processed at the same time that finishes a batch of one image per processor the fastest.
+        // The batch does not depend on the images of this run, so the choice can be saved.
+        TuningProfile best = null;
+        double bestBatchTime = Double.MAX_VALUE;
+        for (int inner = 1; inner <= maxInnerProcessors; inner *= 2) {
+            int poolSize = getPoolSize(inner);
+            TuningProfile candidate = new TuningProfile(poolSize, inner, bestRows);
+            double rounds = Math.ceil((double) cores / poolSize);
+            double batchTime = rounds * measure(sample, filter, candidate);
+            if (batchTime < bestBatchTime) {
+                bestBatchTime = batchTime;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Measures how long it takes to apply the filter to the image with the given profile.
+     * The image is filtered twice and the second time is returned so that the first run warms up the code.
+     * @param image The image to filter.
+     * @param filter The filter to apply.
+     * @param profile The profile to use.
+     * @return Time taken (in ns).
+     */
+    private long measure(Image image, String filter, TuningProfile profile) {
+        long time = 0;
+        for (int run = 0; run < 2; run++) {
+            ImageProcessorMT processor = new ImageProcessorMT(image, filter, false, null, profile);
+            processor.setLogging(false);
+            long startTime = System.nanoTime();
+            processor.run();
+            time = System.nanoTime() - startTime;
+        }
+        return time;
+    }
+
+    /**
+     * Creates a square image with a colour gradient that is used for calibration.
+     * @param side Side of the image in pixels.
+     * @return The image.
+     */
+    private static Image createSample(int side) {
+        WritableImage image = new WritableImage(side, side);
+        PixelWriter pw = image.getPixelWriter();
+        for (int i = 0; i < side; i++) {
+            for (int j = 0; j < side; j++) {
+                int red = (i * 255) / side;
+                int green = (j * 255) / side;
+                int blue = ((i + j) * 127) / side;
+                pw.setArgb(i, j, 0xFF000000 | (red << 16) | (green << 8) | blue);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Used to get the saved profile for the filter and size class.
+     * @param filter The filter.
+     * @param sizeClass The size class.
+     * @return The profile, null if there is none.
+     */
+    private TuningProfile getSavedProfile(String filter, SizeClass sizeClass) {
+        lock.lock();
+        try {
+            return profiles.get(key(filter, sizeClass));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Used to set the profile for the filter and size class.
+     * @param filter The filter.
+     * @param sizeClass The size class.
+     * @param profile The profile.
+     */
+    private void setProfile(String filter, SizeClass sizeClass, TuningProfile profile) {
+        lock.lock();
+        try {
+            profiles.put(key(filter, sizeClass), profile);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Used to get the number of images that can be processed at the same time when each of them
+     * filters the given number of slices at the same time.
+     * @param innerProcessors Number of slices of one image filtered at the same time.
+     * @return The pool size.
+     */
+    private int getPoolSize(int innerProcessors) {
+        return Math.max(1, cores / innerProcessors);
+    }
+
+    private static String key(String filter, SizeClass sizeClass) {
+        return filter.toUpperCase() + "." + sizeClass;
+    }
+}
@@ -0,0 +1,178 @@
+package com.kcl.osc.imageprocessor;
+
+import javafx.scene.paint.Color;
+
+/**
+ * Runnable object that applies one or more box (mean) blurs of any radius, one after another, to a slice
+ * of consecutive rows of the image it's working on.
+ *
+ * Each box blur is computed from a summed-area table that is built once for the slice (plus the halo the blurs need).
+ * The sum of any square is then read from four entries of the table, so the cost per pixel does not depend on the radius.
+ * The first row of the slice computes the whole slice, the other rows only return their part of it.
+ *
+ * A single box blur (BOX) gives the same result as convolving the image with the (2 * radius + 1)^2 mean kernel,
+ * up to floating point rounding (at most one level of 255 where the mean lies on a rounding boundary).
+ * Three box blurs (FASTGAUSS) approximate the Gaussian blur: the box radii are chosen so that the variance of
+ * the three blurs together is as close as possible to sigma^2. For sigma from 2 to 30 the L1 distance between
+ * their kernel and the exact Gaussian kernel (GAUSSIAN, truncated at 3 * sigma) is at most 0.15. So a channel
+ * of the output differs from the exact Gaussian blur by at most 0.15 of the full range for any image, and by
+ * at most 0.025 (about 6 levels of 255) across a straight edge. Below sigma 2 the boxes are too coarse,
+ * so FASTGAUSS uses the exact kernel there.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.0
+ */
+public class BoxBlurInnerProcessorMT extends ImageInnerProcessorMT {
+
+    // Smallest sigma for which the Gaussian blur is approximated with box blurs.
+    public static final double MIN_FAST_GAUSSIAN_SIGMA = 2.0;
+    // Number of box blurs that approximate the Gaussian blur.
+    private static final int GAUSSIAN_PASSES = 3;
+
+    // Radii of the box blurs, applied in this order.
+    private final int[] radii;
+    // Number of pixels around the slice that the blurs read together.
+    private final int halo;
+    // Blurred rows of the slice, null before the first row is filtered.
+    private Color[][] blurred;
+    // Index of the first row of the slice.
+    private int firstRow;
+
+    /**
+     * Constructor of BoxBlurInnerProcessorMT.
+     * @param pixels Copy of 2D array of pixels of the original image with a border around it as wide as the sum of the radii.
+     * @param i Index of the first row of the slice in the original 2D pixel array (pixels).
+     * @param rows Number of consecutive rows in the slice.
+     * @param rowNumber Number of the first row in the filtered region.
+     * @param regionNumber Index of the region of interest the slice belongs to.
+     * @param token Token that tells whether the processing of the image was cancelled.
+     * @param radii Radii of the box blurs to apply one after another.
+     */
+    public BoxBlurInnerProcessorMT(Color[][] pixels, int i, int rows, int rowNumber, int regionNumber, CancellationToken token,
+                                   int[] radii) {
+        super(pixels, null, i, rows, rowNumber, regionNumber, false, token);
+        this.radii = radii;
+        this.halo = getHalo(radii);
+    }
+
+    /**
+     * Used to get the radii of the box blurs that approximate the Gaussian blur with the given sigma.
+     * The boxes have odd widths that differ by at most 2 and the number of the wider ones is chosen so that the
+     * variance of the blurs together is closest to sigma^2.
+     * @param sigma Standard deviation of the Gaussian blur.
+     * @return The radii of the box blurs.
+     */
+    public static int[] getGaussianRadii(double sigma) {
+        double idealWidth = Math.sqrt(12 * sigma * sigma / GAUSSIAN_PASSES + 1);
+        int lowerWidth = (int) Math.floor(idealWidth);
+        if (lowerWidth % 2 == 0) {
+            lowerWidth--;
+        }
+        int upperWidth = lowerWidth + 2;
+        // Number of blurs that use the narrower box.
+        long narrower = Math.round((12 * sigma * sigma - GAUSSIAN_PASSES * lowerWidth * lowerWidth
+                - 4 * GAUSSIAN_PASSES * lowerWidth - 3 * GAUSSIAN_PASSES) / (-4.0 * lowerWidth - 4));
+        int[] radii = new int[GAUSSIAN_PASSES];
+        for (int pass = 0; pass < GAUSSIAN_PASSES; pass++) {
+            radii[pass] = ((pass < narrower ? lowerWidth : upperWidth) - 1) / 2;
+        }
+        return radii;
+    }
+
+    /**
+     * Used to get the number of pixels around each pixel that the box blurs read together.
+     * @param radii Radii of the box blurs.
+     * @return The sum of the radii.
+     */
+    public static int getHalo(int[] radii) {
+        int halo = 0;
+        for (int radius : radii) {
+            halo += radius;
+        }
+        return halo;
+    }
+
+    /**
+     * Apply the box blurs to the required row.
+     * @param i Row's index in the original 2D pixel array.
+     * @return An array of pixels (a row) after the blurs have been applied to each pixel in that row.
+     */
+    @Override
+    protected Color[] filterRow(int i) {
+        if (blurred == null) {
+            firstRow = i;
+            blurred = blurSlice();
+            if (blurred == null) {
+                // Cancelled, run() stops at its next check.
+                return null;
+            }
+        }
+        return blurred[i - firstRow];
+    }
+
+    /**
+     * Applies the box blurs to all the rows of the slice. The cancellation is checked before each blur.
+     * @return The blurred rows, null if the processing was cancelled.
+     */
+    private Color[][] blurSlice() {
+        int length = originalPixels[0].length;
+        int rowsToRead = getRows() + 2 * halo;
+        double[][][] planes = new double[3][rowsToRead][length];
+        for (int k = 0; k < rowsToRead; k++) {
+            Color[] row = originalPixels[firstRow - halo + k];
+            for (int j = 0; j < length; j++) {
+                planes[0][k][j] = row[j].getRed();
+                planes[1][k][j] = row[j].getGreen();
+                planes[2][k][j] = row[j].getBlue();
+            }
+        }
+        for (int c = 0; c < planes.length; c++) {
+            for (int radius : radii) {
+                if (isCancelled()) {
+                    return null;
+                }
+                if (radius > 0) {
+                    planes[c] = boxBlur(planes[c], radius);
+                }
+            }
+        }
+        // An array which to save all the new pixel values to.
+        Color[][] finalRows = new Color[getRows()][length - 2 * halo];
+        for (int k = 0; k < finalRows.length; k++) {
+            for (int j = 0; j < finalRows[k].length; j++) {
+                finalRows[k][j] = new Color(clampRGB(planes[0][k][j]), clampRGB(planes[1][k][j]), clampRGB(planes[2][k][j]), 1.0);
+            }
+        }
+        return finalRows;
+    }
+
+    /**
+     * Applies a box blur to the values with the help of a summed-area table. Only the values whose whole
+     * neighbourhood lies inside the input are computed, so the output is smaller by the radius on each side.
+     * @param values The values to blur.
+     * @param radius Radius of the box.
+     * @return The blurred values.
+     */
+    private static double[][] boxBlur(double[][] values, int radius) {
+        int rows = values.length;
+        int length = values[0].length;
+        // sums[a][b] holds the sum of all the values above and to the left of values[a][b].
+        double[][] sums = new double[rows + 1][length + 1];
+        for (int a = 0; a < rows; a++) {
+            double rowSum = 0.0;
+            for (int b = 0; b < length; b++) {
+                rowSum += values[a][b];
+                sums[a + 1][b + 1] = sums[a][b + 1] + rowSum;
+            }
+        }
+        int size = 2 * radius + 1;
+        double area = (double) size * size;
+        double[][] result = new double[rows - 2 * radius][length - 2 * radius];
+        for (int a = 0; a < result.length; a++) {
+            for (int b = 0; b < result[a].length; b++) {
+                result[a][b] = (sums[a + size][b + size] - sums[a][b + size] - sums[a + size][b] + sums[a][b]) / area;
+            }
+        }
+        return result;
+    }
+}
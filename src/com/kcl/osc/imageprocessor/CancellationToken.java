@@ -0,0 +1,59 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * This class is used to cancel the processing of one image. It is shared by the ImageProcessorMT and
+ * all of its ImageInnerProcessorMT objects, which check it cooperatively: the image processor before starting
+ * each slice and the inner processors before filtering each row.
+ *
+ * The token is cancelled either explicitly with cancel() or implicitly when its deadline passes.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.0
+ */
+public class CancellationToken {
+
+    // Whether cancel() was called.
+    private volatile boolean cancelled = false;
+    // Whether the token has a deadline.
+    private volatile boolean hasDeadline = false;
+    // The deadline, as a value of System.nanoTime().
+    private volatile long deadline;
+
+    /**
+     * Constructor of the CancellationToken.
+     */
+    public CancellationToken() {
+    }
+
+    /**
+     * Used to cancel the work that checks this token.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Used to set the time after which the token is treated as cancelled.
+     * @param deadline The deadline, as a value of System.nanoTime().
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+        hasDeadline = true;
+    }
+
+    /**
+     * Used to check whether the work should stop.
+     * @return true if the token was cancelled or its deadline has passed, false otherwise.
+     */
+    public boolean isCancelled() {
+        return cancelled || isDeadlineExceeded();
+    }
+
+    /**
+     * Used to check whether the deadline of the token has passed.
+     * @return true if the token has a deadline and it has passed, false otherwise.
+     */
+    public boolean isDeadlineExceeded() {
+        return hasDeadline && System.nanoTime() - deadline > 0;
+    }
+}
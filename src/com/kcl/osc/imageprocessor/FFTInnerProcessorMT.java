@@ -0,0 +1,384 @@
+package com.kcl.osc.imageprocessor;
+
+import javafx.scene.paint.Color;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runnable object that applies a large convolution filter to a slice of consecutive rows of the image it's working on
+ * with the help of the fast Fourier transform (FFT).
+ *
+ * The slice is covered by square tiles of tileSize x tileSize pixels that overlap by the radius of the filter on each
+ * side (overlap-save). Each tile is transformed, multiplied by the spectrum of the filter and transformed back.
+ * Only the centre of the tile, which is not affected by the wrap-around of the circular convolution, is kept.
+ * The colour channels are real, so two of them are transformed together as the real and imaginary parts of one
+ * complex tile. Because the filter is real, the two channels come back separated in the real and imaginary parts.
+ *
+ * The spectrum of a filter is computed once for each tile size and kept in a cache shared by all the processors.
+ *
+ * The result matches the direct convolution of ImageInnerProcessorMT up to floating point rounding: each channel
+ * differs by less than 1e-9 before it is converted to 8 bits, so the saved images differ by at most one level
+ * of 255 where a value lies on a rounding boundary.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.0
+ */
+public class FFTInnerProcessorMT extends ImageInnerProcessorMT {
+
+    // Tile sizes the engine can use.
+    private static final int MIN_TILE_SIZE = 32;
+    private static final int MAX_TILE_SIZE = 512;
+    // Cost of one butterfly of the FFT compared to one multiply-add of the direct convolution, for tiles
+    // that still fit in the processor caches. Larger tiles cost more per butterfly.
+    private static final double BUTTERFLY_COST = 7.0;
+    private static final int CACHED_TILE_SIZE = 128;
+    // Cost of reading one pixel of a channel into a tile and writing it back, in multiply-adds.
+    private static final double PIXEL_COST = 25.0;
+    // Maximum number of filter spectra kept in the cache.
+    private static final int MAX_CACHED_SPECTRA = 16;
+
+    // A lock to prevent multiple processors from modifying the cache simultaneously.
+    private static final ReentrantLock cacheLock = new ReentrantLock();
+    // Spectra of the filters for each (filter, tile size), least recently used first.
+    private static final LinkedHashMap<SpectrumKey, double[][][]> spectra = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SpectrumKey, double[][][]> eldest) {
+            return size() > MAX_CACHED_SPECTRA;
+        }
+    };
+
+    // Number of pixels on each side of the centre that the filter covers.
+    private final int radius;
+    // Side of the tiles.
+    private final int tileSize;
+    // Real ([0]) and imaginary ([1]) parts of the spectrum of the filter.
+    private final double[][][] spectrum;
+    // Cosines and sines used by the FFT of length tileSize.
+    private final double[] cos;
+    private final double[] sin;
+    // Filtered rows of the slice, null before the first row is filtered.
+    private Color[][] filtered;
+    // Index of the first row of the slice.
+    private int firstRow;
+
+    /**
+     * Constructor of FFTInnerProcessorMT.
+     * @param pixels Copy of 2D array of pixels of the original image with a border as wide as the radius of the filter.
+     * @param filter A square filter with an odd side to apply to each pixel.
+     * @param i Index of the first row of the slice in the original 2D pixel array (pixels).
+     * @param rows Number of consecutive rows in the slice. At most tileSize - 2 * radius.
+     * @param rowNumber Number of the first row in the filtered region.
+     * @param regionNumber Index of the region of interest the slice belongs to.
+     * @param token Token that tells whether the processing of the image was cancelled.
+     * @param tileSize Side of the tiles, a power of two.
+     */
+    public FFTInnerProcessorMT(Color[][] pixels, float[][] filter, int i, int rows, int rowNumber, int regionNumber,
+                               CancellationToken token, int tileSize) {
+        super(pixels, filter, i, rows, rowNumber, regionNumber, false, token);
+        this.radius = filter.length / 2;
+        this.tileSize = tileSize;
+        cos = new double[tileSize / 2];
+        sin = new double[tileSize / 2];
+        for (int k = 0; k < tileSize / 2; k++) {
+            cos[k] = Math.cos(-2 * Math.PI * k / tileSize);
+            sin[k] = Math.sin(-2 * Math.PI * k / tileSize);
+        }
+        spectrum = getSpectrum(filter);
+    }
+
+    /**
+     * Used to check whether the FFT is expected to be faster than the direct convolution, which costs
+     * filterSize^2 multiply-adds per pixel and channel.
+     * @param filterSize Side of the filter.
+     * @param extent Longest side of the area to filter.
+     * @return true if the FFT should be used.
+     */
+    public static boolean isFasterThanDirect(int filterSize, int extent) {
+        int tileSize = getTileSize(filterSize / 2, extent);
+        return getCostPerPixel(filterSize, tileSize, extent) < (double) filterSize * filterSize;
+    }
+
+    /**
+     * Used to get the tile size with the lowest expected cost per filtered pixel for a filter of the given radius.
+     * @param radius Radius of the filter.
+     * @param extent Longest side of the area to filter.
+     * @return The tile size, a power of two.
+     */
+    public static int getTileSize(int radius, int extent) {
+        int best = MAX_TILE_SIZE;
+        for (int size = MIN_TILE_SIZE; size <= MAX_TILE_SIZE; size *= 2) {
+            if (getCostPerPixel(2 * radius + 1, size, extent) < getCostPerPixel(2 * radius + 1, best, extent)) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Expected cost of filtering one channel of one pixel with the FFT, in multiply-adds of the direct convolution.
+     * Two channels share one complex transform there and back, each of (tileSize^2 / 2) * log2(tileSize^2) butterflies,
+     * and only the centre of the tile (or the part of it inside the area) is kept.
+     * The constants were measured against the direct convolution on 512x512 images.
+     * @param filterSize Side of the filter.
+     * @param tileSize Side of the tiles.
+     * @param extent Longest side of the area to filter.
+     * @return The cost, infinite if the filter does not fit the tile.
+     */
+    private static double getCostPerPixel(int filterSize, int tileSize, int extent) {
+        int kept = Math.min(tileSize - (filterSize - 1), extent);
+        if (kept <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double points = (double) tileSize * tileSize;
+        double butterflies = points / 2 * (Math.log(points) / Math.log(2));
+        double butterflyCost = BUTTERFLY_COST * Math.pow(Math.max(1.0, (double) tileSize / CACHED_TILE_SIZE), 0.8);
+        // Half of a forward and half of an inverse complex transform, plus the multiplication by the spectrum.
+        double perTile = butterflies * butterflyCost + points * 2;
+        return perTile / ((double) kept * kept) + PIXEL_COST;
+    }
+
+    /**
+     * Apply the filter to the required row.
+     * @param i Row's index in the original 2D pixel array.
+     * @return An array of pixels (a row) after the filter has been applied to each pixel in that row.
+     */
+    @Override
+    protected Color[] filterRow(int i) {
+        if (filtered == null) {
+            firstRow = i;
+            filtered = filterSlice();
+            if (filtered == null) {
+                // Cancelled, run() stops at its next check.
+                return null;
+            }
+        }
+        return filtered[i - firstRow];
+    }
+
+    /**
+     * Applies the filter to all the rows of the slice, tile by tile. The cancellation is checked before each tile
+     * is read and before each pair of channels is transformed.
+     * @return The filtered rows, null if the processing was cancelled.
+     */
+    private Color[][] filterSlice() {
+        int length = originalPixels[0].length - 2 * radius;
+        int kept = tileSize - 2 * radius;
+        int tiles = (length + kept - 1) / kept;
+        // The real channels of all the tiles: [tile * 3 + channel][row][position].
+        double[][][] planes = new double[tiles * 3][][];
+        for (int t = 0; t < tiles; t++) {
+            if (isCancelled()) {
+                return null;
+            }
+            readTile(t * kept, planes, t * 3);
+        }
+        // Transform the channels two at a time.
+        for (int p = 0; p < planes.length; p += 2) {
+            if (isCancelled()) {
+                return null;
+            }
+            double[][] second = p + 1 < planes.length ? planes[p + 1] : new double[tileSize][tileSize];
+            convolve(planes[p], second);
+        }
+        // An array which to save all the new pixel values to.
+        Color[][] finalRows = new Color[getRows()][length];
+        for (int k = 0; k < finalRows.length; k++) {
+            for (int j = 0; j < length; j++) {
+                int t = j / kept;
+                int a = radius + k;
+                int b = radius + j - t * kept;
+                finalRows[k][j] = new Color(clampRGB(planes[t * 3][a][b]), clampRGB(planes[t * 3 + 1][a][b]),
+                        clampRGB(planes[t * 3 + 2][a][b]), 1.0);
+            }
+        }
+        return finalRows;
+    }
+
+    /**
+     * Reads the channels of one tile. Parts of the tile outside the pixel array are zero, they only affect
+     * the parts of the result that are thrown away.
+     * @param start Position of the first column of the tile along the rows.
+     * @param planes Array to put the channels to.
+     * @param offset Index in planes to put the red channel to, followed by green and blue.
+     */
+    private void readTile(int start, double[][][] planes, int offset) {
+        for (int c = 0; c < 3; c++) {
+            planes[offset + c] = new double[tileSize][tileSize];
+        }
+        int top = firstRow - radius;
+        for (int a = 0; a < tileSize && top + a < originalPixels.length; a++) {
+            Color[] row = originalPixels[top + a];
+            for (int b = 0; b < tileSize && start + b < row.length; b++) {
+                planes[offset][a][b] = row[start + b].getRed();
+                planes[offset + 1][a][b] = row[start + b].getGreen();
+                planes[offset + 2][a][b] = row[start + b].getBlue();
+            }
+        }
+    }
+
+    /**
+     * Convolves two real tiles with the filter at once. On return they hold the results.
+     * @param first The tile transformed as the real part.
+     * @param second The tile transformed as the imaginary part.
+     */
+    private void convolve(double[][] first, double[][] second) {
+        transform(first, second, false);
+        double[][] spectrumReal = spectrum[0];
+        double[][] spectrumImaginary = spectrum[1];
+        for (int a = 0; a < tileSize; a++) {
+            for (int b = 0; b < tileSize; b++) {
+                double real = first[a][b] * spectrumReal[a][b] - second[a][b] * spectrumImaginary[a][b];
+                double imaginary = first[a][b] * spectrumImaginary[a][b] + second[a][b] * spectrumReal[a][b];
+                first[a][b] = real;
+                second[a][b] = imaginary;
+            }
+        }
+        transform(first, second, true);
+    }
+
+    /**
+     * Computes the 2D FFT of a tile in place: the FFT of every row and then of every column.
+     * @param real Real part of the tile.
+     * @param imaginary Imaginary part of the tile.
+     * @param inverse true for the inverse transform (which also divides by the number of points).
+     */
+    private void transform(double[][] real, double[][] imaginary, boolean inverse) {
+        for (int a = 0; a < tileSize; a++) {
+            transform(real[a], imaginary[a], inverse);
+        }
+        double[] columnReal = new double[tileSize];
+        double[] columnImaginary = new double[tileSize];
+        for (int b = 0; b < tileSize; b++) {
+            for (int a = 0; a < tileSize; a++) {
+                columnReal[a] = real[a][b];
+                columnImaginary[a] = imaginary[a][b];
+            }
+            transform(columnReal, columnImaginary, inverse);
+            for (int a = 0; a < tileSize; a++) {
+                real[a][b] = columnReal[a];
+                imaginary[a][b] = columnImaginary[a];
+            }
+        }
+        if (inverse) {
+            double scale = 1.0 / ((double) tileSize * tileSize);
+            for (int a = 0; a < tileSize; a++) {
+                for (int b = 0; b < tileSize; b++) {
+                    real[a][b] *= scale;
+                    imaginary[a][b] *= scale;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the FFT of one row in place with the iterative radix-2 algorithm.
+     * @param real Real part of the row, its length is tileSize.
+     * @param imaginary Imaginary part of the row.
+     * @param inverse true for the inverse transform (without dividing by the number of points).
+     */
+    private void transform(double[] real, double[] imaginary, boolean inverse) {
+        int n = real.length;
+        // Put the values into bit-reversed order.
+        for (int k = 1, j = 0; k < n; k++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (k < j) {
+                double swap = real[k];
+                real[k] = real[j];
+                real[j] = swap;
+                swap = imaginary[k];
+                imaginary[k] = imaginary[j];
+                imaginary[j] = swap;
+            }
+        }
+        double sign = inverse ? -1.0 : 1.0;
+        for (int length = 2; length <= n; length <<= 1) {
+            int half = length >> 1;
+            int step = n / length;
+            for (int start = 0; start < n; start += length) {
+                for (int k = 0; k < half; k++) {
+                    double wReal = cos[k * step];
+                    double wImaginary = sign * sin[k * step];
+                    int even = start + k;
+                    int odd = even + half;
+                    double oddReal = real[odd] * wReal - imaginary[odd] * wImaginary;
+                    double oddImaginary = real[odd] * wImaginary + imaginary[odd] * wReal;
+                    real[odd] = real[even] - oddReal;
+                    imaginary[odd] = imaginary[even] - oddImaginary;
+                    real[even] += oddReal;
+                    imaginary[even] += oddImaginary;
+                }
+            }
+        }
+    }
+
+    /**
+     * Used to get the spectrum of the filter for the tile size of this processor, from the cache if it was computed before.
+     * The filter is placed so that the circular convolution gives the same result as ImageInnerProcessorMT:
+     * the weight filter[radius + k][radius + l] multiplies the pixel (i + k, j + l).
+     * @param filter The filter.
+     * @return Real ([0]) and imaginary ([1]) parts of the spectrum.
+     */
+    private double[][][] getSpectrum(float[][] filter) {
+        SpectrumKey key = new SpectrumKey(filter, tileSize);
+        cacheLock.lock();
+        try {
+            double[][][] cached = spectra.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        finally {
+            cacheLock.unlock();
+        }
+        double[][] real = new double[tileSize][tileSize];
+        double[][] imaginary = new double[tileSize][tileSize];
+        for (int k = -radius; k <= radius; k++) {
+            for (int l = -radius; l <= radius; l++) {
+                real[Math.floorMod(-k, tileSize)][Math.floorMod(-l, tileSize)] = filter[radius + k][radius + l];
+            }
+        }
+        transform(real, imaginary, false);
+        double[][][] computed = {real, imaginary};
+        cacheLock.lock();
+        try {
+            spectra.put(key, computed);
+        }
+        finally {
+            cacheLock.unlock();
+        }
+        return computed;
+    }
+
+    /**
+     * Key of the spectrum cache: the weights of the filter and the tile size.
+     */
+    private static class SpectrumKey {
+        private final float[][] filter;
+        private final int tileSize;
+
+        SpectrumKey(float[][] filter, int tileSize) {
+            this.filter = filter;
+            this.tileSize = tileSize;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SpectrumKey)) {
+                return false;
+            }
+            SpectrumKey key = (SpectrumKey) other;
+            return tileSize == key.tileSize && Arrays.deepEquals(filter, key.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.deepHashCode(filter) + tileSize;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.LinkedList;
+
+/**
+ * An object of this class applies the filter to several small images one after another on a single thread.
+ *
+ * For small images the fixed costs (a coordinator thread per image and a thread per slice) take longer than
+ * the filtering itself. The TaskPool therefore packs consecutive small images into a batch, which occupies one
+ * place in the pool. Each image of the batch filters its slices inline, on the thread of the batch, so no
+ * threads are started and nothing is coordinated for it.
+ *
+ * Each image is still processed by its own ImageProcessorMT, so it is saved, timed out or cancelled on its own,
+ * and an error in one image is reported for that image and does not stop the rest of the batch.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.0
+ */
+public class ImageBatch implements PoolTask {
+
+    // Images of the batch, processed in this order.
+    private final ImageProcessorMT[] images;
+    // Whether all the images of the batch have concluded.
+    private volatile boolean finished = false;
+
+    /**
+     * Constructor of the ImageBatch.
+     * @param images Images to process, in the order they were submitted.
+     */
+    public ImageBatch(LinkedList<ImageProcessorMT> images) {
+        this.images = images.toArray(new ImageProcessorMT[0]);
+        for (ImageProcessorMT image : this.images) {
+            image.setInline(true);
+        }
+    }
+
+    /**
+     * Runs the images of the batch one after another. Each image keeps its own errors. The batch is set as finished
+     * even if an error gets past them, so that the pool does not wait for it forever.
+     */
+    @Override
+    public void run() {
+        try {
+            long startTime = System.nanoTime();
+            int failed = 0;
+            int cancelled = 0;
+            for (ImageProcessorMT image : images) {
+                // A cancelled image that has not started returns straight away.
+                image.run();
+                if (image.getError() != null) {
+                    failed ++;
+                }
+                else if (image.isCancelled()) {
+                    cancelled ++;
+                }
+            }
+            long timeTaken = System.nanoTime() - startTime;
+            System.out.println("Finished batch of " + images.length + " images (" + failed + " failed, " + cancelled
+                    + " cancelled). Time taken: " + timeTaken + "ns.");
+        }
+        finally {
+            finished = true;
+        }
+    }
+
+    /**
+     * Used to get the images of the batch, e.g. to check the errors of each of them.
+     * @return The image processors.
+     */
+    public ImageProcessorMT[] getImages() {
+        return images.clone();
+    }
+
+    /**
+     * Used to check if all the images of the batch have concluded.
+     * @return if finished.
+     */
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Used to cancel all the images of the batch. The images that have not started yet are released straight away,
+     * the running one stops at its next check. The batch then runs through the released images without filtering them.
+     */
+    @Override
+    public void cancel() {
+        for (ImageProcessorMT image : images) {
+            image.cancel();
+        }
+    }
+
+    /**
+     * Used to check whether all the images of the batch were cancelled.
+     * @return true if cancelled.
+     */
+    @Override
+    public boolean isCancelled() {
+        for (ImageProcessorMT image : images) {
+            if (!image.isCancelled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
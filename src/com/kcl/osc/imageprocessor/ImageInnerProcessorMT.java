@@ -3,41 +3,64 @@ package com.kcl.osc.imageprocessor;
 import javafx.scene.paint.Color;
 
 /**
- * Runnable object that applies filter to one row of the image it's working on.
+ * Runnable object that applies filter to a slice of consecutive rows of the image it's working on.
+ * Before filtering each row it checks the cancellation token of the image and stops if it was cancelled.
+ * Subclasses that filter the whole slice in the first call of filterRow() check it with isCancelled() between
+ * their steps and stop early.
+ * An error while filtering finishes the slice without a result; the error is kept for the ImageProcessorMT.
+ *
+ * This class applies convolution filters and greyscale. Other filter families extend it and override filterRow().
  *
  * @author Vakaris Paulavicius (Student number: K20062023)
- * @version 1.6
+ * @version 2.2
  */
 public class ImageInnerProcessorMT implements Runnable {
 
-    // Row number to put the result to in the filtered image after the algorithm termination.
+    // Row number to put the first row of the result to in the filtered image after the algorithm termination.
     private final int rowNumber;
+    // Index of the region of interest this row belongs to.
+    private final int regionNumber;
     // Original 2D pixels array.
-    private final Color[][] originalPixels;
+    protected final Color[][] originalPixels;
     // Filter which to apply to each pixel of the required row.
     private final float[][] filter;
-    // Filtered row. This array is retrieved by the parent (ImageProcessorMT) when the algorithm
+    // Filtered rows. This array is retrieved by the parent (ImageProcessorMT) when the algorithm
     // terminates
-    private Color[] result;
+    private Color[][] result;
     // When the algorithm is finished, "finished" will be set to true.
-    private boolean finished = false;
+    private volatile boolean finished = false;
     // true, if they greyscale filter has to be applied, false otherwise.
     private final boolean applyGreyscale;
-    // Row's index in the original image.
+    // Index of the first row of the slice in the original image.
     private final int i;
+    // Number of rows in the slice.
+    private final int rows;
+    // Time (in ns) it took to filter the slice.
+    private long timeTaken;
+    // Token that tells whether the processing of the image was cancelled.
+    private final CancellationToken token;
+    // Error that stopped the filtering, null if there was none.
+    private volatile Throwable error;
 
     /**
      * Constructor of ImageInnerProcessorMT.
      * @param pixels Copy of 2D array of pixels of the original image.
      * @param filter A filter to apply to each Color cell in the row. If greyscale is to be
      *               applied, the filter will be null.
-     * @param i Row's index in the original 2D pixel array (pixels).
-     * @param rowNumber Number of the row in the filtered image. Used to get the position when
+     * @param i Index of the first row of the slice in the original 2D pixel array (pixels).
+     * @param rows Number of consecutive rows in the slice.
+     * @param rowNumber Number of the first row in the filtered region. Used to get the position when
      *                  all the rows will be assembled to make the final filtered image.
+     * @param regionNumber Index of the region of interest the slice belongs to.
      * @param applyGreyscale true if greyscale needs to be applied to all row elements.
+     * @param token Token that tells whether the processing of the image was cancelled.
      */
-    public ImageInnerProcessorMT(Color[][] pixels, float[][] filter, int i, int rowNumber, boolean applyGreyscale) {
+    public ImageInnerProcessorMT(Color[][] pixels, float[][] filter, int i, int rows, int rowNumber, int regionNumber, boolean applyGreyscale,
+                                 CancellationToken token) {
         this.rowNumber = rowNumber;
+        this.token = token;
+        this.rows = rows;
+        this.regionNumber = regionNumber;
         this.filter = filter;
         originalPixels = pixels;
         this.applyGreyscale = applyGreyscale;
@@ -50,46 +73,85 @@ public class ImageInnerProcessorMT implements Runnable {
      */
     @Override
     public void run() {
-        // Apply the correct greyscale/filter effect and save the outcome in the result.
-        result = applyGreyscale? applyGreyScale() : applyFilter();
+        long startTime = System.nanoTime();
+        Color[][] filteredRows = new Color[rows][];
+        // Apply the correct greyscale/filter effect to each row and save the outcome in the result.
+        for (int row = 0; row < rows; row++) {
+            if (token.isCancelled()) {
+                // Nobody is going to use the result, stop at the row boundary.
+                setFinished();
+                return;
+            }
+            try {
+                filteredRows[row] = filterRow(i + row);
+            } catch (Throwable e) {
+                // Finish without a result so that the ImageProcessorMT does not wait for this slice forever.
+                // Errors such as OutOfMemoryError are kept too.
+                error = e;
+                setFinished();
+                return;
+            }
+        }
+        if (token.isCancelled()) {
+            // The last row may have stopped early, without a result.
+            setFinished();
+            return;
+        }
+        result = filteredRows;
+        timeTaken = System.nanoTime() - startTime;
         setFinished();
     }
 
+    /**
+     * Apply the filter or greyscale to the required row.
+     * The rows of a slice are filtered in order, so subclasses can carry state from one row to the next.
+     * @param i Row's index in the original 2D pixel array.
+     * @return An array of pixels (a row) after the filter has been applied to each pixel in that row,
+     * null if the processing was cancelled while the row was filtered.
+     */
+    protected Color[] filterRow(int i) {
+        return applyGreyscale? applyGreyScale(i) : applyFilter(i);
+    }
+
     /**
      * Apply filter to the required row.
+     * @param i Row's index in the original 2D pixel array.
      * @return An array of pixels (a row) after the filter has been applied to each pixel in that row.
      */
-    private Color[] applyFilter() {
+    private Color[] applyFilter(int i) {
+        // Number of pixels on each side of the centre that the filter covers.
+        int radius = filter.length / 2;
         // An array which to save all the new pixel values to.
-        Color[] finalRow = new Color[originalPixels[0].length - 2];
-        for (int j = 1; j < originalPixels.length -1; j++) {
+        Color[] finalRow = new Color[originalPixels[0].length - 2 * radius];
+        for (int j = radius; j < originalPixels[0].length - radius; j++) {
 
             double red = 0.0;
             double green = 0.0;
             double blue = 0.0;
 
-            // Apply the filter for each pixel (i, j) and it's neighbours (radius ---> filter.length).
-            for (int k = -1; k < filter.length - 1; k++) {
-                for (int l = -1; l < filter[0].length - 1; l++) {
-                    red += originalPixels[i + k][j + l].getRed() * filter[1 + k][1 + l];
-                    green += originalPixels[i + k][j + l].getGreen() * filter[1 + k][1 + l];
-                    blue += originalPixels[i + k][j + l].getBlue() * filter[1 + k][1 + l];
+            // Apply the filter for each pixel (i, j) and it's neighbours (radius ---> filter.length / 2).
+            for (int k = -radius; k <= radius; k++) {
+                for (int l = -radius; l <= radius; l++) {
+                    red += originalPixels[i + k][j + l].getRed() * filter[radius + k][radius + l];
+                    green += originalPixels[i + k][j + l].getGreen() * filter[radius + k][radius + l];
+                    blue += originalPixels[i + k][j + l].getBlue() * filter[radius + k][radius + l];
                 }
             }
 
             red = clampRGB(red);
             green = clampRGB(green);
             blue = clampRGB(blue);
-            finalRow[j - 1] = new Color(red,green,blue,1.0);
+            finalRow[j - radius] = new Color(red,green,blue,1.0);
         }
         return finalRow;
     }
 
     /**
      * Apply greyscale to the required row.
+     * @param i Row's index in the original 2D pixel array.
      * @return An array of pixels (a row) after the greyscale has been applied to each pixel in that row.
      */
-    private Color[] applyGreyScale() {
+    private Color[] applyGreyScale(int i) {
         // An array which to save all the new pixel values to.
         Color[] finalRow = new Color[originalPixels[0].length];
 
@@ -141,7 +203,7 @@ public class ImageInnerProcessorMT implements Runnable {
     }
 
     /**
-     * Used to get the row number which to put the result
+     * Used to get the row number which to put the first row of the result
      * in the filtered image to when the algorithm terminates.
      * @return row number.
      */
@@ -150,10 +212,50 @@ public class ImageInnerProcessorMT implements Runnable {
     }
 
     /**
-     * Used to get the row of pixels with applied filter/greyscale.
-     * @return The result of the computation.
+     * Used by the subclasses to check whether the processing of the image was cancelled.
+     * @return true if cancelled.
      */
-    public Color[] getResult() {
+    protected boolean isCancelled() {
+        return token.isCancelled();
+    }
+
+    /**
+     * Used to get the number of rows in the slice.
+     * @return number of rows.
+     */
+    protected int getRows() {
+        return rows;
+    }
+
+    /**
+     * Used to get the index of the region of interest the row belongs to.
+     * @return region number.
+     */
+    public int getRegionNumber() {
+        return regionNumber;
+    }
+
+    /**
+     * Used to get the rows of pixels with applied filter/greyscale.
+     * @return The result of the computation, null if the processing was cancelled.
+     */
+    public Color[][] getResult() {
         return result;
     }
+
+    /**
+     * Used to get the error that stopped the filtering.
+     * @return The error, null if there was none.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Used to get the time it took to filter the slice.
+     * @return time taken (in ns).
+     */
+    public long getTimeTaken() {
+        return timeTaken;
+    }
 }
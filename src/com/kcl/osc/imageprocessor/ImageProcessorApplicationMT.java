@@ -12,13 +12,15 @@ import java.util.*;
  * It then applies the specified filter to all the images.
  *
  * @author unknown. Modified by Vakaris Paulavicius (Student number: K20062023)
- * @version 1.4
+ * @version 1.8
  */
 public class ImageProcessorApplicationMT extends Application {
 	
 	/**
 	 * Change this constant to change the filtering operation. Options are
-	 * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, EDGE, GREY
+	 * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, EDGE, GREY, the rank filters
+	 * MIN:radius, MEDIAN:radius, MAX:radius (e.g. MEDIAN:5), the box blur BOX:radius
+	 * and the Gaussian blurs GAUSSIAN:sigma (exact) and FASTGAUSS:sigma (approximated)
 	 */
 	private static final String filter = "EMBOSS";
 	
@@ -28,10 +30,41 @@ public class ImageProcessorApplicationMT extends Application {
 	 */
 	private static final boolean saveNewImages = true;
 
-	// Maximum size of the TaskPool.
-	private static final int TASK_POOL_SIZE = 10;
+	/**
+	 * Set this array to apply the filter only to the given regions of the images,
+	 * e.g. {new RegionOfInterest(0, 0, 100, 100)}. null applies the filter to the whole image.
+	 */
+	private static final RegionOfInterest[] regionsOfInterest = null;
+
+	/**
+	 * When regions of interest are given, set this boolean to true to save only the
+	 * bounding box of the regions, or to false to save the whole image with the
+	 * filtered regions composited in place.
+	 */
+	private static final boolean cropToRegions = false;
+
+	/**
+	 * Set this boolean to false to use the default concurrency settings instead of
+	 * the ones chosen by the AutoTuner for this host.
+	 */
+	private static final boolean autotune = true;
+
+	/**
+	 * Time (in ms) within which each image has to be processed, counted from its submission
+	 * to the pool. Images that take longer are cancelled. 0 means no timeout.
+	 */
+	private static final long imageTimeoutMillis = 0;
+
+	/**
+	 * Images with fewer pixels than this (e.g. thumbnails) are processed in batches,
+	 * several of them on one thread of the pool. 0 processes every image on its own.
+	 */
+	private static final long smallImagePixels = 4 * 1024;
+
 	// TaskPool responsible for applying the filter to images.
-	private final TaskPool taskPool = new TaskPool(TASK_POOL_SIZE);
+	private TaskPool taskPool;
+	// Tuner which chooses the concurrency settings, null if tuning is turned off.
+	private AutoTuner tuner;
 
 	/**
 	 * Method called at the start of the application.
@@ -43,11 +76,43 @@ public class ImageProcessorApplicationMT extends Application {
 		// Gets the images from the 'img' folder.
 		ArrayList<ImageInfo> images = findImages();
 
+		if (autotune) {
+			tuner = AutoTuner.forThisHost();
+		}
+		// Create the processors first, so that the tuner knows the areas they filter.
+		ArrayList<ImageProcessorMT> processors = new ArrayList<>();
+		for (ImageInfo image : images) {
+			try {
+				processors.add(createProcessor(image));
+			} catch (IllegalArgumentException e) {
+				// E.g. the radius of the filter is too large for this image.
+				System.out.println("Skipped image " + image.getFilename() + ": " + e.getMessage());
+			}
+		}
+
+		// Choose the size of the pool. The tuner calibrates the filter on this host for the areas that are
+		// filtered (the regions of interest, not the whole images) if it has not done it in one of the previous runs.
+		int poolSize = TuningProfile.DEFAULT.getPoolSize();
+		if (tuner != null) {
+			long[] areas = new long[processors.size()];
+			for (int i = 0; i < areas.length; i++) {
+				areas[i] = processors.get(i).getFilteredArea();
+			}
+			tuner.calibrate(filter, areas);
+			poolSize = tuner.getPoolSize(filter, areas);
+		}
+		taskPool = new TaskPool(poolSize, smallImagePixels);
+
 		// Put pool into a thread.
 		Thread poolThread = new Thread(taskPool);
 		// Submit all tasks to the pool
-		for (ImageInfo image : images) {
-			taskPool.submit(new ImageProcessorMT(image.getImage(), filter, saveNewImages, image.getFilename() + "_filtered.png"));
+		for (ImageProcessorMT processor : processors) {
+			if (imageTimeoutMillis > 0) {
+				taskPool.submit(processor, imageTimeoutMillis);
+			}
+			else {
+				taskPool.submit(processor);
+			}
 		}
 		// Start a thread that runs the pool.
 		poolThread.start();
@@ -76,11 +141,36 @@ public class ImageProcessorApplicationMT extends Application {
 			taskPool.quit();
 		}
 
+		// Save the profiles refined while processing the images so that the next run starts with them.
+		if (tuner != null) {
+			tuner.save();
+		}
+
     	System.out.println("Done.");
     	// Kill this application
 		Platform.exit();
     }
 
+	/**
+	 * Creates the processor which applies the filter to the given image (or to its regions of interest).
+	 * @param image The image to process.
+	 * @return The image processor.
+	 */
+	private ImageProcessorMT createProcessor(ImageInfo image) {
+		String outputName = image.getFilename() + "_filtered.png";
+		RegionOfInterest[] regions = regionsOfInterest;
+		boolean crop = cropToRegions;
+		if (regions == null) {
+			Image img = image.getImage();
+			regions = new RegionOfInterest[]{new RegionOfInterest(0, 0, (int) img.getWidth(), (int) img.getHeight())};
+			crop = true;
+		}
+		if (tuner == null) {
+			return new ImageProcessorMT(image.getImage(), filter, saveNewImages, outputName, regions, crop);
+		}
+		return new ImageProcessorMT(image.getImage(), filter, saveNewImages, outputName, regions, crop, tuner);
+	}
+
 	/**
 	 * This method expects all the images that are to be processed to
 	 * be in a folder called img that is in the current working directory.
@@ -2,30 +2,55 @@ package com.kcl.osc.imageprocessor;
 
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelReader;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 import javafx.scene.paint.Color;
 import javax.imageio.ImageIO;
 import java.io.File;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An object of this class is responsible for applying the filter to the image it holds.
  * It converts image to a 2D array of pixels, retrieves the correct filter and then applies the filter
  * to each pixel of the image.
  *
- * It divides the image into equal slices (rows) and for each row starts an ImageInnerProcessorMT which
- * applies the filter to each pixel in that row.
+ * It divides the image into equal slices (bands of consecutive rows) and for each slice starts an ImageInnerProcessorMT
+ * which applies the filter to each pixel in those rows. The height of the slices and the number of slices filtered at
+ * the same time are taken from a TuningProfile, which can be chosen by an AutoTuner.
+ *
+ * Optionally, the filter can be applied only to one or more regions of interest. Then only the rows of those
+ * regions (plus the halo the filter needs) are read and filtered, so the cost depends on the area of the regions
+ * and not on the area of the image. The output is then either cropped to the bounding box of the regions or
+ * is the original image with the filtered regions composited in place.
+ *
+ * Besides greyscale and the 3x3 convolution filters, rank filters (MIN, MEDIAN and MAX) and box blurs (BOX) of any radius
+ * up to the longest side of the image can be applied, as well as the Gaussian blur, either exact (GAUSSIAN) or
+ * approximated by three box blurs (FASTGAUSS) that together read at most as far as the longest side of the image.
+ * The radius or sigma is given after the name of the filter, e.g. "MEDIAN:5" or "GAUSSIAN:2.5".
+ * Large convolution filters are applied with the FFT (FFTInnerProcessorMT) when its cost model expects it to be faster
+ * than the direct convolution.
+ *
+ * The processing can be cancelled with cancel() or by a deadline. The cancellation is checked cooperatively
+ * at slice and row boundaries. A cancelled processor stops starting new slices, drops its queued slices and
+ * pixel buffers straight away and does not save anything.
+ *
+ * The pixels are read from the image and written to the output with bulk transfers (PixelTransfer).
+ * The time they take is logged separately from the total time.
+ *
+ * Small images can be processed inline: their slices are then filtered one after another on the thread that runs
+ * the processor, without starting a thread per slice. The TaskPool does this for the images it packs into an ImageBatch.
+ * If the processing fails, the error is kept (getError()) instead of leaving the processor unfinished.
  *
  * After all the rows have been filtered, the object terminates its algorithm and saves the filtered image in the "result"
  * field. Depending on the provided "save" value it either saves the new image with the given "fileName"
  * to the main directory or does not.
  *
  * @author unknown, modified by Vakaris Paulavicius (Student number: K20062023).
- * @version 1.9
+ * @version 2.7
  */
-public class ImageProcessorMT implements Runnable{
+public class ImageProcessorMT implements PoolTask {
 
 	// The original image which to apply the filter to.
 	private final Image image;
@@ -35,18 +60,50 @@ public class ImageProcessorMT implements Runnable{
 	private final String filterType;
 	// Whether save the image to the main directory after the algorithm terminates or not.
 	private final boolean save;
-	// 2D array of pixels after the execution of the algorithm.
-	private final Color[][] filteredImage;
+	// Regions of the image which to apply the filter to (clipped to the image bounds).
+	private final RegionOfInterest[] regions;
+	// Whether the output is cropped to the bounding box of the regions (true) or
+	// the filtered regions are composited in place into the original image (false).
+	private final boolean crop;
+	// 2D arrays of pixels of each region after the execution of the algorithm.
+	// Set to null when the processing is cancelled.
+	private Color[][][] filteredRegions;
+	// Number of slices that still have to be filtered.
+	private int remainingSlices;
 	// Whether the algorithm has concluded.
-	private boolean finished = false;
-	// Maximum number of ImageInnerProcessorMT objects that can apply filter to the rows at the same time.
-	private static final int MAX_NUMBER_OF_INNER_PROCESSORS = 32;
+	private volatile boolean finished = false;
+	// Whether run() has been called.
+	private boolean started = false;
+	// A lock to prevent cancel() from releasing the resources while run() is starting.
+	private final ReentrantLock stateLock = new ReentrantLock();
+	// Token used to cancel the processing of this image.
+	private final CancellationToken token = new CancellationToken();
+	// Concurrency settings to use, null to ask the tuner when the processing starts.
+	private final TuningProfile profile;
+	// Number of consecutive rows in one slice.
+	private int rowsPerSlice;
 	// Number of ImageInnerProcessorMT objects currently applying filter to the rows.
 	private int numberOfInnerProcessorsRunning;
 	// An array of ImageInnerProcessorMT objects that are applying filter to the rows.
-	private final ImageInnerProcessorMT[] innerProcessors;
-	// A list of rows in the image.
+	// Its length is the maximum number of slices that can be filtered at the same time.
+	// null until the processing starts.
+	private ImageInnerProcessorMT[] innerProcessors;
+	// A list of slices in the image.
 	private final LinkedList<ImageInnerProcessorMT> slices;
+	// Tuner to report the measured slice latencies to, null if there is none.
+	private final AutoTuner tuner;
+	// Total time (in ns) that the finished slices took.
+	private long totalSliceTime;
+	// Number of finished slices.
+	private int finishedSlices;
+	// Whether to print the progress of the algorithm.
+	private boolean logging = true;
+	// Whether the slices are filtered one after another on the thread that runs this processor.
+	private boolean inline = false;
+	// Error that stopped the processing, null if there was none.
+	private volatile Throwable error;
+	// Time (in ns) spent moving pixels between the image and the pixel arrays.
+	private long transferTime;
 
 	/**
 	 * Constructor.
@@ -56,28 +113,308 @@ public class ImageProcessorMT implements Runnable{
 	 * @param fileName The output image filename.
 	 */
 	public ImageProcessorMT(Image image, String filter, boolean save, String fileName) {
+		this(image, filter, save, fileName, TuningProfile.DEFAULT);
+	}
+
+	/**
+	 * Constructor for filtering the whole image with the given concurrency settings.
+	 * @param image The image to process.
+	 * @param filter The filter to use.
+	 * @param save Whether to save the new image or not.
+	 * @param fileName The output image filename.
+	 * @param profile Concurrency settings to use.
+	 */
+	public ImageProcessorMT(Image image, String filter, boolean save, String fileName, TuningProfile profile) {
+		this(image, filter, save, fileName, new RegionOfInterest[]{new RegionOfInterest(0, 0, (int) image.getWidth(), (int) image.getHeight())}, true, profile, null);
+	}
+
+	/**
+	 * Constructor for applying the filter only to the given regions of interest.
+	 * @param image The image to process.
+	 * @param filter The filter to use.
+	 * @param save Whether to save the new image or not.
+	 * @param fileName The output image filename.
+	 * @param regions Regions of the image to apply the filter to. Parts of the regions outside the image are ignored.
+	 * @param crop true to output only the bounding box of the regions, false to output the whole original image
+	 *             with the filtered regions composited in place.
+	 */
+	public ImageProcessorMT(Image image, String filter, boolean save, String fileName, RegionOfInterest[] regions, boolean crop) {
+		this(image, filter, save, fileName, regions, crop, TuningProfile.DEFAULT, null);
+	}
+
+	/**
+	 * Constructor for applying the filter to the given regions of interest with the concurrency settings
+	 * chosen by the tuner. The measured slice latencies are reported back to the tuner.
+	 * @param image The image to process.
+	 * @param filter The filter to use.
+	 * @param save Whether to save the new image or not.
+	 * @param fileName The output image filename.
+	 * @param regions Regions of the image to apply the filter to. Parts of the regions outside the image are ignored.
+	 * @param crop true to output only the bounding box of the regions, false to output the whole original image
+	 *             with the filtered regions composited in place.
+	 * @param tuner Tuner which chooses the concurrency settings.
+	 */
+	public ImageProcessorMT(Image image, String filter, boolean save, String fileName, RegionOfInterest[] regions, boolean crop, AutoTuner tuner) {
+		this(image, filter, save, fileName, regions, crop, null, tuner);
+	}
+
+	/**
+	 * Constructor.
+	 * @param image The image to process.
+	 * @param filter The filter to use.
+	 * @param save Whether to save the new image or not.
+	 * @param fileName The output image filename.
+	 * @param regions Regions of the image to apply the filter to.
+	 * @param crop Whether to output only the bounding box of the regions.
+	 * @param profile Concurrency settings to use, null to ask the tuner.
+	 * @param tuner Tuner to report the slice latencies to, null if there is none.
+	 */
+	private ImageProcessorMT(Image image, String filter, boolean save, String fileName, RegionOfInterest[] regions, boolean crop,
+							 TuningProfile profile, AutoTuner tuner) {
 		this.image = image;
 		this.fileName = fileName;
 		this.filterType = filter;
 		this.save = save;
-		filteredImage = new Color[(int)image.getHeight()][(int)image.getWidth()];
-		innerProcessors = new ImageInnerProcessorMT[MAX_NUMBER_OF_INNER_PROCESSORS];
+		this.crop = crop;
+		this.regions = clipRegions(regions);
+		this.tuner = tuner;
+		this.profile = profile;
 		slices = new LinkedList<>();
 		numberOfInnerProcessorsRunning = 0;
+		// The pixels are read and divided into slices when the processing starts.
+		checkFilter();
+	}
+
+	/**
+	 * Checks that the filter is known and its parameter is valid, so that a wrong filter is reported
+	 * when the processor is created and not when it starts.
+	 */
+	private void checkFilter() {
+		switch (getFilterName(filterType)) {
+			case "GREY":
+				break;
+			case "MIN":
+			case "MEDIAN":
+			case "MAX":
+				getRankRadius();
+				break;
+			case "BOX":
+				getBoxRadii();
+				break;
+			case "FASTGAUSS":
+				// Narrow Gaussians are applied with the exact kernel, which is small.
+				if (getFilterParameter(filterType, 1) >= BoxBlurInnerProcessorMT.MIN_FAST_GAUSSIAN_SIGMA) {
+					getBoxRadii();
+				}
+				break;
+			default:
+				if (createFilter(filterType) == null) {
+					throw new IllegalArgumentException("Unknown filter " + filterType + ".");
+				}
+		}
+	}
+
+	/**
+	 * Reads the concurrency settings and divides the image into slices. This is done when the processing starts
+	 * and not when the processor is created, so the image uses the slice height that the tuner has refined from
+	 * the images processed before it, and the images waiting in the queue do not hold their pixels.
+	 */
+	private void prepare() {
+		TuningProfile current = profile == null ? tuner.getProfile(filterType, getFilteredArea()) : profile;
+		rowsPerSlice = Math.max(current.getRowsPerSlice(), getMinimumRowsPerSlice());
+		innerProcessors = new ImageInnerProcessorMT[current.getInnerProcessors()];
+		filteredRegions = new Color[regions.length][][];
+		for (int r = 0; r < regions.length; r++) {
+			filteredRegions[r] = new Color[regions[r].getWidth()][regions[r].getHeight()];
+		}
 		// Divides the image into rows so that the algorithm can be applied.
 		divideTask();
+		remainingSlices = slices.size();
+	}
+
+	/**
+	 * Clips the given regions to the bounds of the image and drops the ones that lie outside of it.
+	 * @param regions Regions of interest.
+	 * @return Regions that lie inside the image.
+	 */
+	private RegionOfInterest[] clipRegions(RegionOfInterest[] regions) {
+		if (regions == null || regions.length == 0) {
+			throw new IllegalArgumentException("At least one region of interest has to be given.");
+		}
+		LinkedList<RegionOfInterest> clipped = new LinkedList<>();
+		for (RegionOfInterest region : regions) {
+			RegionOfInterest inside = region.clip((int) image.getWidth(), (int) image.getHeight());
+			if (inside != null) {
+				clipped.addLast(inside);
+			}
+		}
+		if (clipped.isEmpty()) {
+			throw new IllegalArgumentException("None of the regions of interest intersect the image.");
+		}
+		return clipped.toArray(new RegionOfInterest[0]);
 	}
 
 	/**
 	 * Used to divide the image into rows that can be later processed simultaneously.
 	 */
 	private void divideTask() {
-		if (filterType.equals("GREY")) {
-			divideTaskForGreyscale();
+		switch (getFilterName(filterType)) {
+			case "GREY":
+				divideTaskForGreyscale();
+				break;
+			case "MIN":
+			case "MEDIAN":
+			case "MAX":
+				divideTaskForRankFilter();
+				break;
+			case "BOX":
+				divideTaskForBoxBlur(getBoxRadii());
+				break;
+			case "FASTGAUSS":
+				double sigma = getFilterParameter(filterType, 1);
+				if (sigma < BoxBlurInnerProcessorMT.MIN_FAST_GAUSSIAN_SIGMA) {
+					// The boxes are too coarse to approximate a narrow Gaussian, use the exact kernel.
+					divideTaskForCustomFilter();
+				}
+				else {
+					divideTaskForBoxBlur(getBoxRadii());
+				}
+				break;
+			default:
+				divideTaskForCustomFilter();
 		}
-		else {
-			divideTaskForCustomFilter();
+	}
+
+	/**
+	 * Used to get the name of the filter without its radius, e.g. "MEDIAN" for "median:5".
+	 * @param filterType The type of filter required.
+	 * @return The name of the filter in upper case.
+	 */
+	private static String getFilterName(String filterType) {
+		int separator = filterType.indexOf(':');
+		String name = separator < 0 ? filterType : filterType.substring(0, separator);
+		return name.toUpperCase();
+	}
+
+	/**
+	 * Used to get the parameter (radius or sigma) given after the name of the filter, e.g. 2.5 for "GAUSSIAN:2.5".
+	 * @param filterType The type of filter required.
+	 * @param defaultValue Value to use when none is given.
+	 * @return The parameter.
+	 */
+	private static double getFilterParameter(String filterType, double defaultValue) {
+		int separator = filterType.indexOf(':');
+		if (separator < 0) {
+			return defaultValue;
+		}
+		double value;
+		try {
+			value = Double.parseDouble(filterType.substring(separator + 1).trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid parameter in filter " + filterType + ".");
+		}
+		if (!(value > 0) || Double.isInfinite(value)) {
+			throw new IllegalArgumentException("Parameter of filter " + filterType + " must be positive.");
+		}
+		return value;
+	}
+
+	/**
+	 * Used to get the radius given after the name of the filter, e.g. 5 for "MEDIAN:5".
+	 * @param filterType The type of filter required.
+	 * @param defaultRadius Radius to use when none is given.
+	 * @return The radius.
+	 */
+	private static int getFilterRadius(String filterType, int defaultRadius) {
+		double radius = getFilterParameter(filterType, defaultRadius);
+		if (radius != Math.floor(radius)) {
+			throw new IllegalArgumentException("Radius of filter " + filterType + " must be a whole number.");
+		}
+		return (int) radius;
+	}
+
+	/**
+	 * Used to get the radius of the rank filter. The radius can be at most the longest side of the image,
+	 * as the pixels are read with a halo of that width around them, and at most RankInnerProcessorMT.MAX_RADIUS.
+	 * @return The radius.
+	 */
+	private int getRankRadius() {
+		int maxRadius = Math.min(getLongestImageSide(), RankInnerProcessorMT.MAX_RADIUS);
+		if (getFilterParameter(filterType, 1) > maxRadius) {
+			throw new IllegalArgumentException("Rank filter radius must be between 1 and " + maxRadius + " for this image.");
+		}
+		return getFilterRadius(filterType, 1);
+	}
+
+	/**
+	 * Used to get the radii of the box blurs that the BOX or FASTGAUSS filter applies one after another.
+	 * Together the blurs can read at most as far as the longest side of the image, as the pixels are read
+	 * with a halo of that width around them.
+	 * @return The radii of the box blurs.
+	 */
+	private int[] getBoxRadii() {
+		int maxHalo = getLongestImageSide();
+		if (getFilterName(filterType).equals("BOX")) {
+			if (getFilterParameter(filterType, 1) > maxHalo) {
+				throw new IllegalArgumentException("Box blur radius must be between 1 and " + maxHalo + " for this image.");
+			}
+			return new int[]{getFilterRadius(filterType, 1)};
+		}
+		double sigma = getFilterParameter(filterType, 1);
+		// The blurs read about 3 * sigma around each pixel. Larger sigmas are rejected before the radii are computed,
+		// so that they do not overflow.
+		if (sigma > maxHalo || BoxBlurInnerProcessorMT.getHalo(BoxBlurInnerProcessorMT.getGaussianRadii(sigma)) > maxHalo) {
+			throw new IllegalArgumentException("Sigma of filter " + filterType + " is too large for this image.");
 		}
+		return BoxBlurInnerProcessorMT.getGaussianRadii(sigma);
+	}
+
+	/**
+	 * Used to get the smallest slice height that the filter can use efficiently.
+	 * Rank filters and box blurs set up their histograms or summed-area tables from 2 * radius + 1 rows (or more),
+	 * so their slices are at least that tall.
+	 * @return The smallest number of rows in one slice.
+	 */
+	int getMinimumRowsPerSlice() {
+		switch (getFilterName(filterType)) {
+			case "MIN":
+			case "MEDIAN":
+			case "MAX":
+				return 2 * getRankRadius() + 1;
+			case "BOX":
+				return 2 * getBoxRadii()[0] + 1;
+			case "FASTGAUSS":
+				double sigma = getFilterParameter(filterType, 1);
+				if (sigma < BoxBlurInnerProcessorMT.MIN_FAST_GAUSSIAN_SIGMA) {
+					return 1;
+				}
+				return 2 * BoxBlurInnerProcessorMT.getHalo(getBoxRadii()) + 1;
+			default:
+				return 1;
+		}
+	}
+
+	/**
+	 * Used to check whether the filter is applied with the FFT. Its slices are as tall as its tiles allow,
+	 * so it does not use the slice height of the profile.
+	 * @return true if the FFT is used.
+	 */
+	boolean usesFFT() {
+		switch (getFilterName(filterType)) {
+			case "GREY":
+			case "MIN":
+			case "MEDIAN":
+			case "MAX":
+			case "BOX":
+				return false;
+			case "FASTGAUSS":
+				if (getFilterParameter(filterType, 1) >= BoxBlurInnerProcessorMT.MIN_FAST_GAUSSIAN_SIGMA) {
+					return false;
+				}
+				break;
+		}
+		float[][] filter = createFilter(filterType);
+		return filter != null && FFTInnerProcessorMT.isFasterThanDirect(filter.length, getLongestSide());
 	}
 
 	/**
@@ -86,9 +423,7 @@ public class ImageProcessorMT implements Runnable{
 	 * @return The filter.
 	 */
 	private float[][] createFilter(String filterType) {
-		filterType = filterType.toUpperCase();
-
-		switch (filterType) {
+		switch (getFilterName(filterType)) {
 			case "IDENTITY":
 				return (new float[][]{{0, 0, 0}, {0, 1, 0}, {0, 0, 0}});
 			case "BLUR":
@@ -99,50 +434,190 @@ public class ImageProcessorMT implements Runnable{
 				return (new float[][]{{-1, -1, -1}, {-1, 8, -1}, {-1, -1, -1}});
 			case "EMBOSS":
 				return (new float[][]{{-2, -1, 0}, {-1, 0, 1}, {0, 1, 2}});
+			case "GAUSSIAN":
+			case "FASTGAUSS":
+				return createGaussianFilter(getFilterParameter(filterType, 1));
 		}
 		return null;
 	}
 
 	/**
-	 * Divide the image into rows where each row has to apply greyscale filter to its pixels.
+	 * Creates the exact Gaussian filter, truncated at 3 * sigma from the centre and normalised so that its weights add up to 1.
+	 * @param sigma Standard deviation of the Gaussian.
+	 * @return The filter.
+	 */
+	private static float[][] createGaussianFilter(double sigma) {
+		int radius = (int) Math.ceil(3 * sigma);
+		double[][] weights = new double[2 * radius + 1][2 * radius + 1];
+		double total = 0.0;
+		for (int k = -radius; k <= radius; k++) {
+			for (int l = -radius; l <= radius; l++) {
+				weights[radius + k][radius + l] = Math.exp(-(k * k + l * l) / (2 * sigma * sigma));
+				total += weights[radius + k][radius + l];
+			}
+		}
+		float[][] filter = new float[2 * radius + 1][2 * radius + 1];
+		for (int k = 0; k < filter.length; k++) {
+			for (int l = 0; l < filter.length; l++) {
+				filter[k][l] = (float) (weights[k][l] / total);
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Divide each region into rows where each row has to apply greyscale filter to its pixels.
 	 */
 	private void divideTaskForGreyscale() {
-		// Get 2D array of pixels.
-		Color[][] inputPixels = getPixelData();
+		for (int r = 0; r < regions.length; r++) {
+			// Get 2D array of pixels of the region.
+			Color[][] inputPixels = getPixelData(regions[r]);
 
-		for (int i = 0; i < (inputPixels.length);i++) {
-			slices.addLast(new ImageInnerProcessorMT(inputPixels, null, i, i, true));
+			for (int i = 0; i < (inputPixels.length); i += rowsPerSlice) {
+				int rows = Math.min(rowsPerSlice, inputPixels.length - i);
+				slices.addLast(new ImageInnerProcessorMT(inputPixels, null, i, rows, i, r, true, token));
+			}
 		}
 	}
 
 	/**
-	 * Divide the image into rows where each row has to apply filter to its pixels.
+	 * Divide each region into rows where each row has to apply filter to its pixels.
 	 */
 	private void divideTaskForCustomFilter() {
-		// Get 2D array of pixels with an additional 1px grey border.
-		Color[][] pixels = getPixelDataExtended();
 		// Get the required filter according to the provided filter name.
 		float[][] filter = createFilter(filterType);
+		if (filter == null) {
+			throw new IllegalArgumentException("Unknown filter " + filterType + ".");
+		}
+		if (usesFFT()) {
+			divideTaskForFFT(filter);
+			return;
+		}
+		// Number of pixels around each pixel that the filter reads.
+		int halo = filter.length / 2;
+
+		for (int r = 0; r < regions.length; r++) {
+			// Get 2D array of pixels of the region with the halo around it.
+			Color[][] pixels = getPixelDataExtended(regions[r], halo);
 
-		for (int i = 1; i < pixels.length -1; i++) {
-			slices.addLast(new ImageInnerProcessorMT(pixels, filter, i, i-1, false));
+			for (int i = halo; i < pixels.length - halo; i += rowsPerSlice) {
+				int rows = Math.min(rowsPerSlice, pixels.length - halo - i);
+				slices.addLast(new ImageInnerProcessorMT(pixels, filter, i, rows, i - halo, r, false, token));
+			}
 		}
 	}
 
 	/**
-	 * Runs this image processor.
+	 * Divide each region into slices where each slice has to apply the rank filter to its pixels.
+	 */
+	private void divideTaskForRankFilter() {
+		RankInnerProcessorMT.Rank rank = RankInnerProcessorMT.Rank.valueOf(getFilterName(filterType));
+		// The rank filter reads all the pixels within the radius of each pixel.
+		// The radius is checked before the pixels (with a border as wide as the radius) are read.
+		int halo = getRankRadius();
+
+		for (int r = 0; r < regions.length; r++) {
+			// Get 2D array of pixels of the region with the halo around it.
+			Color[][] pixels = getPixelDataExtended(regions[r], halo);
+
+			for (int i = halo; i < pixels.length - halo; i += rowsPerSlice) {
+				int rows = Math.min(rowsPerSlice, pixels.length - halo - i);
+				slices.addLast(new RankInnerProcessorMT(pixels, i, rows, i - halo, r, token, halo, rank));
+			}
+		}
+	}
+
+	/**
+	 * Divide each region into slices where each slice has to apply the filter to its pixels with the FFT.
+	 * The height of the slices is the part of a tile that is kept, so each slice is one row of tiles.
+	 * @param filter The filter to apply.
+	 */
+	private void divideTaskForFFT(float[][] filter) {
+		// Number of pixels around each pixel that the filter reads.
+		int halo = filter.length / 2;
+		int tileSize = FFTInnerProcessorMT.getTileSize(halo, getLongestSide());
+		int sliceHeight = tileSize - 2 * halo;
+
+		for (int r = 0; r < regions.length; r++) {
+			// Get 2D array of pixels of the region with the halo around it.
+			Color[][] pixels = getPixelDataExtended(regions[r], halo);
+
+			for (int i = halo; i < pixels.length - halo; i += sliceHeight) {
+				int rows = Math.min(sliceHeight, pixels.length - halo - i);
+				slices.addLast(new FFTInnerProcessorMT(pixels, filter, i, rows, i - halo, r, token, tileSize));
+			}
+		}
+	}
+
+	/**
+	 * Divide each region into slices where each slice has to apply the box blurs to its pixels.
+	 * @param radii Radii of the box blurs to apply one after another.
+	 */
+	private void divideTaskForBoxBlur(int[] radii) {
+		// The blurs together read all the pixels within the sum of their radii of each pixel.
+		int halo = BoxBlurInnerProcessorMT.getHalo(radii);
+
+		for (int r = 0; r < regions.length; r++) {
+			// Get 2D array of pixels of the region with the halo around it.
+			Color[][] pixels = getPixelDataExtended(regions[r], halo);
+
+			for (int i = halo; i < pixels.length - halo; i += rowsPerSlice) {
+				int rows = Math.min(rowsPerSlice, pixels.length - halo - i);
+				slices.addLast(new BoxBlurInnerProcessorMT(pixels, i, rows, i - halo, r, token, radii));
+			}
+		}
+	}
+
+	/**
+	 * Runs this image processor. An error (including an Error such as OutOfMemoryError) stops the processing
+	 * of this image only: it is kept and the processor is set as finished without saving anything.
 	 */
 	@Override
 	public void run() {
+		try {
+			process();
+		} catch (Throwable e) {
+			error = e;
+			// Stop the slices that are still running.
+			token.cancel();
+			release();
+			finished = true;
+			log("Failed applying filter to image " + image + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Applies the filter to the slices of the image.
+	 */
+	private void process() {
+		stateLock.lock();
+		try {
+			if (finished) {
+				// The processing was cancelled before it started.
+				return;
+			}
+			started = true;
+		}
+		finally {
+			stateLock.unlock();
+		}
 		// To follow the time that the process takes to execute
 		long startTime = System.nanoTime();
-		System.out.println("Started applying filter " + filterType.toUpperCase() + " to image " + image + ".");
+		log("Started applying filter " + filterType.toUpperCase() + " to image " + image + ".");
+		prepare();
 		while (!finished) {
+			if (token.isCancelled()) {
+				// Stop without waiting for the running slices, they stop at their next row.
+				release();
+				finished = true;
+				log("Cancelled applying filter to image " + image + (token.isDeadlineExceeded() ? " (deadline exceeded)." : "."));
+				return;
+			}
 			checkForFinishedSubtasks();
 			// While there are rows that the filter was not applied to yet.
 			if(!slices.isEmpty()) {
 				// And there is space for new rows to be modified at this time.
-				if(numberOfInnerProcessorsRunning < MAX_NUMBER_OF_INNER_PROCESSORS) {
+				if(numberOfInnerProcessorsRunning < innerProcessors.length) {
 					// Start applying the filter to a new slice.
 					startExecutingSlice(slices.removeFirst());
 				}
@@ -158,15 +633,159 @@ public class ImageProcessorMT implements Runnable{
 			}
 			checkIfFinished();
 		}
-		setFinished();
 		long timeTaken = System.nanoTime() - startTime;
 		if(save) {
-			System.out.println("Finished applying filter to image " + image + ". Image saved as: " + fileName);
+			log("Finished applying filter to image " + image + ". Image saved as: " + fileName);
 		}
 		else {
-			System.out.println("Finished applying filter to image " + image + ".");
+			log("Finished applying filter to image " + image + ".");
+		}
+		log("Time taken: " + timeTaken + "ns.");
+		// Part of the time taken, logged on its own so that it can be compared with the time spent filtering.
+		log("Pixel transfer time (reading and writing the pixels): " + transferTime + "ns.");
+		// The slices of the FFT do not depend on the slice height, so there is nothing to refine.
+		if (tuner != null && finishedSlices > 0 && !usesFFT()) {
+			tuner.record(filterType, getFilteredArea(), getMinimumRowsPerSlice(), getWidestRegion(), rowsPerSlice,
+					totalSliceTime / finishedSlices);
+		}
+	}
+
+	/**
+	 * Used to cancel the processing of this image. If the processing has not started yet, the queued slices
+	 * and pixel buffers are released straight away. Otherwise they are released by the running processor
+	 * at its next check.
+	 */
+	@Override
+	public void cancel() {
+		token.cancel();
+		stateLock.lock();
+		try {
+			if (!started && !finished) {
+				release();
+				finished = true;
+			}
+		}
+		finally {
+			stateLock.unlock();
+		}
+	}
+
+	/**
+	 * Used to set the time by which the processing has to finish. If the deadline passes,
+	 * the processing is cancelled.
+	 * @param deadline The deadline, as a value of System.nanoTime().
+	 */
+	public void setDeadline(long deadline) {
+		token.setDeadline(deadline);
+	}
+
+	/**
+	 * Used to check whether the processing was cancelled or its deadline has passed.
+	 * @return true if cancelled.
+	 */
+	@Override
+	public boolean isCancelled() {
+		return token.isCancelled();
+	}
+
+	/**
+	 * Drops the queued slices, the running slices and the pixel buffers so that they can be garbage collected.
+	 */
+	private void release() {
+		slices.clear();
+		if (innerProcessors != null) {
+			Arrays.fill(innerProcessors, null);
+		}
+		numberOfInnerProcessorsRunning = 0;
+		filteredRegions = null;
+	}
+
+	/**
+	 * Used to get the error that stopped the processing.
+	 * @return The error, null if there was none.
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	/**
+	 * Used to filter the slices one after another on the thread that runs this processor
+	 * instead of starting a thread for each slice.
+	 * @param inline Whether to filter the slices inline.
+	 */
+	void setInline(boolean inline) {
+		this.inline = inline;
+	}
+
+	/**
+	 * Used to get the number of pixels of the image.
+	 * @return The area of the image.
+	 */
+	long getImageArea() {
+		return (long) image.getWidth() * (long) image.getHeight();
+	}
+
+	/**
+	 * Used to turn the progress messages of this processor on or off.
+	 * @param logging Whether to print the progress messages.
+	 */
+	void setLogging(boolean logging) {
+		this.logging = logging;
+	}
+
+	/**
+	 * Prints the message if logging is turned on.
+	 * @param message The message to print.
+	 */
+	private void log(String message) {
+		if (logging) {
+			System.out.println(message);
 		}
-		System.out.println("Time taken: " + timeTaken + "ns.");
+	}
+
+	/**
+	 * Used to get the longest side of the image.
+	 * @return The longest side in pixels.
+	 */
+	private int getLongestImageSide() {
+		return (int) Math.max(image.getWidth(), image.getHeight());
+	}
+
+	/**
+	 * Used to get the longest side of the regions of interest.
+	 * @return The longest side in pixels.
+	 */
+	private int getLongestSide() {
+		int longest = 0;
+		for (RegionOfInterest region : regions) {
+			longest = Math.max(longest, Math.max(region.getWidth(), region.getHeight()));
+		}
+		return longest;
+	}
+
+	/**
+	 * Used to get the number of rows of the largest region of interest. The rows of the pixel arrays are indexed
+	 * by the first (x) coordinate, so that is the width of the widest region.
+	 * @return The number of rows.
+	 */
+	private int getWidestRegion() {
+		int widest = 0;
+		for (RegionOfInterest region : regions) {
+			widest = Math.max(widest, region.getWidth());
+		}
+		return widest;
+	}
+
+	/**
+	 * Used to get the number of pixels that are filtered. The tuner chooses the profile by this area.
+	 * @return The total area of the regions of interest.
+	 */
+	public long getFilteredArea() {
+		long area = 0;
+		for (RegionOfInterest region : regions) {
+			area += region.getArea();
+		}
+		return area;
 	}
 
 
@@ -192,9 +811,14 @@ public class ImageProcessorMT implements Runnable{
 
 	/**
 	 * Used to start the thread which will be applying filter to the given slice.
+	 * Inline, the slice is filtered on this thread instead and is finished when the method returns.
 	 * @param slice A slice that is to be applied to.
 	 */
 	private void startThread(ImageInnerProcessorMT slice) {
+		if (inline) {
+			slice.run();
+			return;
+		}
 		Thread thread = new Thread(slice);
 		thread.start();
 	}
@@ -203,17 +827,8 @@ public class ImageProcessorMT implements Runnable{
 	 * Check if the image filtering is complete.
 	 */
 	private void checkIfFinished() {
-		// Keeps track of how many lines in the image are still to be modified.
-		int missingElements = 0;
-		// Checks each row of the filtered image and counts how many rows have not been modified yet.
-		// Their pixels will be null.
-		for (Color[] colors : filteredImage) {
-			if (colors[0] == null) {
-				missingElements++;
-			}
-		}
 		// If the filter was applied to all the rows, setFinished().
-		if(missingElements == 0) {
+		if(remainingSlices == 0) {
 			setFinished();
 		}
 	}
@@ -225,14 +840,27 @@ public class ImageProcessorMT implements Runnable{
 	private void checkForFinishedSubtasks() {
 		for(int i = 0; i < innerProcessors.length; i ++) {
 			if(innerProcessors[i] != null) {
-				if(innerProcessors[i].isFinished()) {
-					// If the filter was applied to the row, retrieve its index in the final image
-					// and put the row in that position.
+				if(innerProcessors[i].isFinished() && innerProcessors[i].getError() != null) {
+					// The slice failed, stop the processing of the whole image. run() keeps the error.
+					Throwable sliceError = innerProcessors[i].getError();
+					if (sliceError instanceof Error) {
+						throw (Error) sliceError;
+					}
+					throw (RuntimeException) sliceError;
+				}
+				// A finished slice without a result was cancelled, the run() method will stop at its next check.
+				if(innerProcessors[i].isFinished() && innerProcessors[i].getResult() != null) {
+					// If the filter was applied to the slice, retrieve the index of its first row in the filtered region
+					// and put the rows starting from that position.
 					int resultIndex = innerProcessors[i].getRowNumber();
-					filteredImage[resultIndex] = innerProcessors[i].getResult();
+					Color[][] rows = innerProcessors[i].getResult();
+					System.arraycopy(rows, 0, filteredRegions[innerProcessors[i].getRegionNumber()], resultIndex, rows.length);
+					totalSliceTime += innerProcessors[i].getTimeTaken();
+					finishedSlices ++;
 					// Free the spot so that new rows could be modified.
 					innerProcessors[i] = null;
 					numberOfInnerProcessorsRunning --;
+					remainingSlices --;
 				}
 			}
 		}
@@ -242,6 +870,7 @@ public class ImageProcessorMT implements Runnable{
 	 * Used to check if the filtering process is finished.
 	 * @return if finished.
 	 */
+	@Override
 	public boolean isFinished() {
 		return finished;
 	}
@@ -251,26 +880,32 @@ public class ImageProcessorMT implements Runnable{
 	 * project directory if it is a requirement.
 	 */
 	private void setFinished() {
-		finished = true;
 		if (save) {
-			saveNewImage(filteredImage, fileName);
+			saveNewImage(fileName);
 		}
+		finished = true;
 	}
 
 	/**
-	 * Saves the pixel data in the parameter as a new image file.
-	 * @param pixels The pixel data.
+	 * Saves the filtered regions as a new image file.
+	 * If the output is cropped, the image covers only the bounding box of the regions.
+	 * Otherwise the filtered regions are written on top of a copy of the original image.
 	 * @param filename The output filename.
 	 */
-	private void saveNewImage(Color[][] pixels, String filename) {
-		WritableImage wImg = new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
+	private void saveNewImage(String filename) {
+		RegionOfInterest area = crop ? RegionOfInterest.boundingBox(regions) : new RegionOfInterest(0, 0, (int) image.getWidth(), (int) image.getHeight());
+		WritableImage wImg = new WritableImage(area.getWidth(), area.getHeight());
 
 		PixelWriter pw = wImg.getPixelWriter();
-		for (int i = 0; i < wImg.getHeight(); i++) {
-			for (int j = 0; j < wImg.getWidth(); j++) {
-				pw.setColor(i, j, pixels[i][j]);
-			}
+		if (!crop || regions.length > 1) {
+			// Pixels of the output that are not covered by any region keep their original colour.
+			pw.setPixels(0, 0, area.getWidth(), area.getHeight(), image.getPixelReader(), area.getX(), area.getY());
+		}
+		long startTime = System.nanoTime();
+		for (int r = 0; r < regions.length; r++) {
+			PixelTransfer.write(pw, filteredRegions[r], regions[r].getX() - area.getX(), regions[r].getY() - area.getY());
 		}
+		transferTime += System.nanoTime() - startTime;
 
 		File newFile = new File(filename);
 
@@ -283,42 +918,27 @@ public class ImageProcessorMT implements Runnable{
 
 
 	/**
-	 * Gets the pixel data from the image but does
+	 * Gets the pixel data of the region but does
 	 * NOT add a border.
+	 * @param region The region of the image to read.
 	 * @return The pixel data.
 	 */
-	private Color[][] getPixelData() {
-		PixelReader pr = image.getPixelReader();
-		Color[][] pixels = new Color[(int) image.getWidth()][(int) image.getHeight()];
-		for (int i = 0; i < image.getWidth(); i++) {
-			for (int j = 0; j < image.getHeight(); j++) {
-				pixels[i][j] = pr.getColor(i, j);
-			}
-		}
-
-		return pixels;
+	private Color[][] getPixelData(RegionOfInterest region) {
+		return getPixelDataExtended(region, 0);
 	}
 
 	/**
-	 * Gets the pixel data from the image but with a one-pixel border added.
+	 * Gets the pixel data of the region with a border of the given width added around it.
+	 * Where the border lies inside the image it holds the neighbouring pixels of the region,
+	 * elsewhere it is grey.
+	 * @param region The region of the image to read.
+	 * @param halo Width of the border in pixels.
 	 * @return The pixel data.
 	 */
-	private Color[][] getPixelDataExtended() {
-		PixelReader pr = image.getPixelReader();
-		Color[][] pixels = new Color[(int) image.getWidth() + 2][(int) image.getHeight() + 2];
-
-		for (int i = 0; i < pixels.length; i++) {
-			for (int j = 0; j < pixels.length; j++) {
-				pixels[i][j] = new Color(0.5, 0.5, 0.5, 1.0);
-			}
-		}
-
-		for (int i = 0; i < image.getWidth(); i++) {
-			for (int j = 0; j < image.getHeight(); j++) {
-				pixels[i + 1][j + 1] = pr.getColor(i, j);
-			}
-		}
-
+	private Color[][] getPixelDataExtended(RegionOfInterest region, int halo) {
+		long startTime = System.nanoTime();
+		Color[][] pixels = PixelTransfer.read(image, region, halo, new Color(0.5, 0.5, 0.5, 1.0));
+		transferTime += System.nanoTime() - startTime;
 		return pixels;
 	}
-}
\ No newline at end of file
+}
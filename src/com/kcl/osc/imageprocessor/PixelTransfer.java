@@ -0,0 +1,287 @@
+package com.kcl.osc.imageprocessor;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritablePixelFormat;
+import javafx.scene.paint.Color;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * This class moves pixels between images and the 2D pixel arrays (Color[column][row]) that the filters work on.
+ *
+ * Pixels are not read and written one at a time with getColor() and setColor(), which costs a call (with its
+ * bounds checks and format conversion) per pixel. They are transferred in bulk with getPixels() and setPixels()
+ * as non-premultiplied 32-bit ARGB values, and converted to and from Color objects in parallel: the rectangle is divided
+ * into bands (of columns when reading, of rows when writing) and each band is converted on its own thread.
+ * Small transfers use a single band on the calling thread, as starting a thread would cost more than the conversion.
+ *
+ * A band is read a block of a few columns at a time into a small buffer, which is converted column by column,
+ * in the order of the pixel array. The buffer stays in the cache and no buffer of the whole image is made.
+ *
+ * The values are converted exactly as getColor() and setColor() convert them, so the results do not change.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.2
+ */
+public class PixelTransfer {
+
+    // Smallest number of pixels converted by one band.
+    public static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+    // Number of rows converted column by column at a time when writing.
+    private static final int BLOCK_ROWS = 32;
+    // Number of columns read from the image at a time.
+    private static final int BLOCK_COLUMNS = 16;
+    // Number of processors, the largest useful number of bands.
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    // Format of the transferred pixels.
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbInstance();
+
+    /**
+     * Constructor of the PixelTransfer. All the methods are static.
+     */
+    private PixelTransfer() {
+    }
+
+    /**
+     * Reads the pixels of the region with a border of the given width around it.
+     * Where the border lies inside the image it holds the neighbouring pixels of the region, elsewhere it holds
+     * the given colour. Only the pixels of the border that lie outside the image are filled with it.
+     * @param image The image to read.
+     * @param region The region to read. Must lie inside the image.
+     * @param halo Width of the border in pixels.
+     * @param border Colour of the border outside the image.
+     * @return The pixels, indexed by column and then row.
+     */
+    public static Color[][] read(Image image, RegionOfInterest region, int halo, Color border) {
+        Color[][] pixels = new Color[region.getWidth() + 2 * halo][region.getHeight() + 2 * halo];
+        // Part of the region and its border that lies inside the image.
+        RegionOfInterest inside = new RegionOfInterest(region.getX() - halo, region.getY() - halo, pixels.length, pixels[0].length)
+                .clip((int) image.getWidth(), (int) image.getHeight());
+        // Position of that part in the pixel array.
+        int left = inside.getX() - (region.getX() - halo);
+        int top = inside.getY() - (region.getY() - halo);
+
+        PixelReader reader = image.getPixelReader();
+        Band[] bands = createBands(inside.getWidth(), inside.getHeight());
+        for (Band band : bands) {
+            band.setRead(reader, pixels, inside.getX(), inside.getY(), left, top);
+        }
+        runBands(bands);
+
+        if (halo > 0) {
+            for (int i = 0; i < pixels.length; i++) {
+                if (i < left || i >= left + inside.getWidth()) {
+                    // The whole column lies outside the image.
+                    Arrays.fill(pixels[i], border);
+                }
+                else {
+                    Arrays.fill(pixels[i], 0, top, border);
+                    Arrays.fill(pixels[i], top + inside.getHeight(), pixels[i].length, border);
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Writes the pixels to the given position of an image.
+     * @param writer Writer of the image.
+     * @param pixels The pixels, indexed by column and then row.
+     * @param x Column of the image to write the first column of the pixels to.
+     * @param y Row of the image to write the first row of the pixels to.
+     */
+    public static void write(PixelWriter writer, Color[][] pixels, int x, int y) {
+        int width = pixels.length;
+        int height = pixels[0].length;
+        int[] buffer = new int[width * height];
+        Band[] bands = createBands(height, width);
+        for (Band band : bands) {
+            band.setWrite(pixels, buffer);
+        }
+        runBands(bands);
+        // The image is written by this thread only, in one call.
+        writer.setPixels(x, y, width, height, FORMAT, buffer, 0, width);
+    }
+
+    /**
+     * Divides a rectangle into bands of consecutive lines (columns or rows). There is a band for each core at most,
+     * and each band converts at least MIN_PIXELS_PER_BAND pixels (unless there is only one).
+     * @param lines Number of lines the rectangle is divided along.
+     * @param length Length of each line.
+     * @return The bands.
+     */
+    private static Band[] createBands(int lines, int length) {
+        long area = (long) lines * length;
+        int numberOfBands = (int) Math.max(1, Math.min(area / MIN_PIXELS_PER_BAND, CORES));
+        numberOfBands = Math.min(numberOfBands, Math.max(1, lines));
+        Band[] bands = new Band[numberOfBands];
+        for (int b = 0; b < numberOfBands; b++) {
+            bands[b] = new Band(length, lines * b / numberOfBands, lines * (b + 1) / numberOfBands);
+        }
+        return bands;
+    }
+
+    /**
+     * Converts the bands, each one on its own thread except the first one, which is converted on this thread.
+     * Waits for all of them to finish.
+     * @param bands The bands.
+     */
+    private static void runBands(Band[] bands) {
+        Thread[] threads = new Thread[bands.length];
+        for (int b = 1; b < bands.length; b++) {
+            threads[b] = new Thread(bands[b]);
+            threads[b].start();
+        }
+        bands[0].run();
+        for (int b = 1; b < bands.length; b++) {
+            try {
+                threads[b].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while transferring pixels.");
+            }
+        }
+        for (Band band : bands) {
+            if (band.getError() instanceof Error) {
+                throw (Error) band.getError();
+            }
+            if (band.getError() != null) {
+                throw (RuntimeException) band.getError();
+            }
+        }
+    }
+
+    /**
+     * Converts a non-premultiplied ARGB value to a colour, as PixelReader.getColor() does.
+     * @param argb The ARGB value.
+     * @return The colour.
+     */
+    private static Color toColor(int argb) {
+        return Color.rgb((argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff, (argb >>> 24) / 255.0);
+    }
+
+    /**
+     * Converts a colour to a non-premultiplied ARGB value, as PixelWriter.setColor() does.
+     * @param color The colour.
+     * @return The ARGB value.
+     */
+    private static int toArgb(Color color) {
+        int alpha = (int) Math.round(color.getOpacity() * 255);
+        int red = (int) Math.round(color.getRed() * 255);
+        int green = (int) Math.round(color.getGreen() * 255);
+        int blue = (int) Math.round(color.getBlue() * 255);
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Runnable object that converts a band of consecutive lines, either columns from an image to a pixel array (read)
+     * or rows from a pixel array to an ARGB buffer (write).
+     */
+    private static class Band implements Runnable {
+
+        // Length of each line of the band (the height of a column or the width of a row).
+        private final int length;
+        // Index of the first line of the band.
+        private final int from;
+        // Index of the line after the last line of the band.
+        private final int to;
+        // Reader of the image, null when writing.
+        private PixelReader reader;
+        // The pixel array.
+        private Color[][] pixels;
+        // Buffer of ARGB values of the whole rectangle, used when writing.
+        private int[] buffer;
+        // Position of the rectangle in the image, used when reading.
+        private int imageX;
+        private int imageY;
+        // Position of the rectangle in the pixel array, used when reading.
+        private int left;
+        private int top;
+        // Error that stopped the conversion, null if there was none.
+        private Throwable error;
+
+        private Band(int length, int from, int to) {
+            this.length = length;
+            this.from = from;
+            this.to = to;
+        }
+
+        private void setRead(PixelReader reader, Color[][] pixels, int imageX, int imageY, int left, int top) {
+            this.reader = reader;
+            this.pixels = pixels;
+            this.imageX = imageX;
+            this.imageY = imageY;
+            this.left = left;
+            this.top = top;
+        }
+
+        private void setWrite(Color[][] pixels, int[] buffer) {
+            this.pixels = pixels;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (reader != null) {
+                    read();
+                }
+                else {
+                    write();
+                }
+            } catch (Throwable e) {
+                // Kept for the thread that waits for the band, which throws it again.
+                error = e;
+            }
+        }
+
+        /**
+         * Reads the columns of the band from the image, a block of columns per call, and converts them to colours.
+         * Each column of the pixel array is filled in order, from a buffer small enough to stay in the cache.
+         * Vertically neighbouring pixels with the same value share one Color object (colours are immutable).
+         */
+        private void read() {
+            int[] values = new int[Math.min(BLOCK_COLUMNS, to - from) * length];
+            for (int block = from; block < to; block += BLOCK_COLUMNS) {
+                int columns = Math.min(BLOCK_COLUMNS, to - block);
+                reader.getPixels(imageX + block, imageY, columns, length, FORMAT, values, 0, columns);
+                for (int i = 0; i < columns; i++) {
+                    Color[] column = pixels[left + block + i];
+                    int previous = 0;
+                    Color previousColor = null;
+                    for (int j = 0; j < length; j++) {
+                        int argb = values[j * columns + i];
+                        if (previousColor == null || argb != previous) {
+                            previous = argb;
+                            previousColor = toColor(argb);
+                        }
+                        column[top + j] = previousColor;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Converts the rows of the band to ARGB values.
+         */
+        private void write() {
+            int width = pixels.length;
+            for (int block = from; block < to; block += BLOCK_ROWS) {
+                int blockEnd = Math.min(block + BLOCK_ROWS, to);
+                for (int i = 0; i < width; i++) {
+                    Color[] column = pixels[i];
+                    for (int j = block; j < blockEnd; j++) {
+                        buffer[j * width + i] = toArgb(column[j]);
+                    }
+                }
+            }
+        }
+
+        private Throwable getError() {
+            return error;
+        }
+    }
+}
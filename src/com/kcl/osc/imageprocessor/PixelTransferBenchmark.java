@@ -0,0 +1,151 @@
+package com.kcl.osc.imageprocessor;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.stage.Stage;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * This class measures the cost of moving pixels between the images and the pixel arrays, separately from the filtering.
+ *
+ * For each image in the 'img' directory it times reading the image (with a border of one pixel, as the 3x3 filters
+ * need) and writing it back, both pixel by pixel with getColor() and setColor() and in bulk with PixelTransfer.
+ * It then times the whole processing of the image with the given filter, so that the transfer can be compared with it.
+ * Each time is the average of several repetitions, after a few repetitions that warm up the code.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.0
+ */
+public class PixelTransferBenchmark extends Application {
+
+    // Filter the transfer time is compared with.
+    private static final String filter = "EMBOSS";
+    // Number of repetitions that are not timed.
+    private static final int WARM_UP = 5;
+    // Number of timed repetitions.
+    private static final int REPETITIONS = 10;
+    // Colour of the border outside the image.
+    private static final Color BORDER = new Color(0.5, 0.5, 0.5, 1.0);
+
+    /**
+     * Method called at the start of the application.
+     * @param stage Stage
+     */
+    @Override
+    public void start(Stage stage) {
+        File[] files = new File("img").listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && !file.getName().startsWith(".")) {
+                    benchmark(file.getName(), new Image("file:" + file.getPath()));
+                }
+            }
+        }
+        Platform.exit();
+    }
+
+    /**
+     * Times the transfers and the processing of one image and prints the results.
+     * @param name Name of the image.
+     * @param image The image.
+     */
+    private static void benchmark(String name, Image image) {
+        RegionOfInterest whole = new RegionOfInterest(0, 0, (int) image.getWidth(), (int) image.getHeight());
+        Color[][] pixels = PixelTransfer.read(image, whole, 0, BORDER);
+        long[] times = new long[5];
+        for (int repetition = 0; repetition < WARM_UP + REPETITIONS; repetition++) {
+            long[] run = new long[5];
+            long startTime = System.nanoTime();
+            readPixelByPixel(image, whole, 1);
+            run[0] = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            PixelTransfer.read(image, whole, 1, BORDER);
+            run[1] = System.nanoTime() - startTime;
+
+            WritableImage output = new WritableImage(whole.getWidth(), whole.getHeight());
+            startTime = System.nanoTime();
+            writePixelByPixel(output.getPixelWriter(), pixels);
+            run[2] = System.nanoTime() - startTime;
+
+            output = new WritableImage(whole.getWidth(), whole.getHeight());
+            startTime = System.nanoTime();
+            PixelTransfer.write(output.getPixelWriter(), pixels, 0, 0);
+            run[3] = System.nanoTime() - startTime;
+
+            ImageProcessorMT processor = new ImageProcessorMT(image, filter, false, null);
+            processor.setLogging(false);
+            startTime = System.nanoTime();
+            processor.run();
+            run[4] = System.nanoTime() - startTime;
+
+            if (repetition >= WARM_UP) {
+                for (int k = 0; k < times.length; k++) {
+                    times[k] += run[k];
+                }
+            }
+        }
+        System.out.printf("%s (%dx%d): read %.2f ms pixel by pixel, %.2f ms in bulk; write %.2f ms pixel by pixel, "
+                        + "%.2f ms in bulk; %s %.2f ms, of which the bulk transfer is %.0f%%.%n",
+                name, whole.getWidth(), whole.getHeight(), millis(times[0]), millis(times[1]), millis(times[2]),
+                millis(times[3]), filter, millis(times[4]), 100.0 * (times[1] + times[3]) / times[4]);
+    }
+
+    /**
+     * Reads the pixels of the region with a grey border around it one at a time, as ImageProcessorMT did before
+     * PixelTransfer.
+     * @param image The image to read.
+     * @param region The region to read.
+     * @param halo Width of the border in pixels.
+     * @return The pixels.
+     */
+    private static Color[][] readPixelByPixel(Image image, RegionOfInterest region, int halo) {
+        PixelReader pr = image.getPixelReader();
+        Color[][] pixels = new Color[region.getWidth() + 2 * halo][region.getHeight() + 2 * halo];
+        for (int i = 0; i < pixels.length; i++) {
+            int x = region.getX() - halo + i;
+            for (int j = 0; j < pixels[i].length; j++) {
+                int y = region.getY() - halo + j;
+                if (x < 0 || y < 0 || x >= image.getWidth() || y >= image.getHeight()) {
+                    pixels[i][j] = BORDER;
+                }
+                else {
+                    pixels[i][j] = pr.getColor(x, y);
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Writes the pixels one at a time, as ImageProcessorMT did before PixelTransfer.
+     * @param pw Writer of the image.
+     * @param pixels The pixels.
+     */
+    private static void writePixelByPixel(PixelWriter pw, Color[][] pixels) {
+        for (int i = 0; i < pixels.length; i++) {
+            for (int j = 0; j < pixels[i].length; j++) {
+                pw.setColor(i, j, pixels[i][j]);
+            }
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6 / REPETITIONS;
+    }
+
+    /**
+     * Start the benchmark.
+     * @param args Arguments.
+     */
+    public static void main(String[] args) {
+        launch(args);
+    }
+}
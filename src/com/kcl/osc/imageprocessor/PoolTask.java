@@ -0,0 +1,28 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * A unit of work that the TaskPool runs on one of its threads: either a single image (ImageProcessorMT)
+ * or a batch of small images (ImageBatch).
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.0
+ */
+public interface PoolTask extends Runnable {
+
+    /**
+     * Used to check whether the task has concluded, either normally or because it was cancelled.
+     * @return true if finished.
+     */
+    boolean isFinished();
+
+    /**
+     * Used to cancel the task. A task that has not started yet releases its resources straight away.
+     */
+    void cancel();
+
+    /**
+     * Used to check whether the task was cancelled or its deadline has passed.
+     * @return true if cancelled.
+     */
+    boolean isCancelled();
+}
@@ -0,0 +1,278 @@
+package com.kcl.osc.imageprocessor;
+
+import javafx.scene.paint.Color;
+import java.util.Arrays;
+
+/**
+ * Runnable object that applies a rank filter (minimum, median or maximum of the square neighbourhood of
+ * the given radius) to a slice of consecutive rows of the image it's working on.
+ *
+ * It uses the sliding histogram algorithm of Perreault and Hebert over 8-bit channels. Every position along
+ * the row keeps a histogram of the 2 * radius + 1 pixels above and below it (a column histogram). Moving to the
+ * next row removes one pixel from and adds one pixel to each column histogram. Along the row, the histogram of
+ * the whole neighbourhood is updated by adding the column histogram entering it and subtracting the one leaving it.
+ * Each step costs the same for every radius, so the cost per pixel does not depend on the radius.
+ * The rank is found in a coarse histogram of 16 bins first and then in the 16 fine bins of the found coarse bin.
+ * Only the coarse histogram of the neighbourhood is updated at every position. The fine bins of a coarse bin are
+ * brought up to date lazily, when the rank falls into that coarse bin: from the position where they were last
+ * updated, or from scratch if that is cheaper. Neighbouring pixels tend to fall into the same coarse bins, so
+ * most positions update only 16 fine bins instead of all 256.
+ *
+ * Setting the column histograms up costs 2 * radius + 1 pixels per column, so the slices should be
+ * at least that tall to keep the set up cost per pixel constant.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.1
+ */
+public class RankInnerProcessorMT extends ImageInnerProcessorMT {
+
+    /**
+     * Rank filters that can be applied.
+     */
+    public enum Rank {
+        MIN,
+        MEDIAN,
+        MAX
+    }
+
+    // Largest supported radius. The column histograms hold counts of up to 2 * radius + 1 pixels in shorts.
+    public static final int MAX_RADIUS = Short.MAX_VALUE / 2;
+    // Number of levels of an 8-bit channel.
+    private static final int LEVELS = 256;
+    // Number of fine bins in one coarse bin.
+    private static final int FINE_BINS = 16;
+    // Number of coarse bins.
+    private static final int COARSE_BINS = LEVELS / FINE_BINS;
+    // Number of colour channels (red, green, blue).
+    private static final int CHANNELS = 3;
+
+    // Radius of the neighbourhood.
+    private final int radius;
+    // Position of the output value among the sorted values of the neighbourhood.
+    private final int rank;
+    // Channel values of the rows this slice reads: [channel][row - firstRow][position].
+    private int[][][] channels;
+    // Index of the first row in the channels array.
+    private int firstRow;
+    // Fine column histograms: [channel][position * LEVELS + level].
+    private short[][] columns;
+    // Coarse column histograms: [channel][position * COARSE_BINS + bin].
+    private short[][] coarseColumns;
+    // Row the column histograms are centred on, -1 before the first row.
+    private int currentRow = -1;
+
+    /**
+     * Constructor of RankInnerProcessorMT.
+     * @param pixels Copy of 2D array of pixels of the original image with a border of the given radius around it.
+     * @param i Index of the first row of the slice in the original 2D pixel array (pixels).
+     * @param rows Number of consecutive rows in the slice.
+     * @param rowNumber Number of the first row in the filtered region.
+     * @param regionNumber Index of the region of interest the slice belongs to.
+     * @param token Token that tells whether the processing of the image was cancelled.
+     * @param radius Radius of the neighbourhood.
+     * @param rankType The rank filter to apply.
+     */
+    public RankInnerProcessorMT(Color[][] pixels, int i, int rows, int rowNumber, int regionNumber, CancellationToken token,
+                                int radius, Rank rankType) {
+        super(pixels, null, i, rows, rowNumber, regionNumber, false, token);
+        if (radius < 1 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("Rank filter radius must be between 1 and " + MAX_RADIUS + ".");
+        }
+        this.radius = radius;
+        int size = (2 * radius + 1) * (2 * radius + 1);
+        switch (rankType) {
+            case MIN:
+                rank = 0;
+                break;
+            case MAX:
+                rank = size - 1;
+                break;
+            default:
+                rank = size / 2;
+        }
+    }
+
+    /**
+     * Apply the rank filter to the required row.
+     * @param i Row's index in the original 2D pixel array.
+     * @return An array of pixels (a row) after the filter has been applied to each pixel in that row.
+     */
+    @Override
+    protected Color[] filterRow(int i) {
+        int length = originalPixels[0].length;
+        if (currentRow < 0) {
+            setUp(i, length);
+        }
+        else {
+            // Slide the column histograms one row down.
+            for (int c = 0; c < CHANNELS; c++) {
+                int[] leaving = channels[c][i - radius - 1 - firstRow];
+                int[] entering = channels[c][i + radius - firstRow];
+                for (int j = 0; j < length; j++) {
+                    remove(c, j, leaving[j]);
+                    add(c, j, entering[j]);
+                }
+            }
+        }
+        currentRow = i;
+
+        int[][] values = new int[CHANNELS][];
+        for (int c = 0; c < CHANNELS; c++) {
+            values[c] = filterChannel(c, length);
+        }
+        // An array which to save all the new pixel values to.
+        Color[] finalRow = new Color[length - 2 * radius];
+        for (int j = 0; j < finalRow.length; j++) {
+            finalRow[j] = Color.rgb(values[0][j], values[1][j], values[2][j]);
+        }
+        return finalRow;
+    }
+
+    /**
+     * Converts the rows this slice reads to 8-bit channel values and fills the column histograms
+     * for the first row.
+     * @param i Index of the first row of the slice.
+     * @param length Length of the rows.
+     */
+    private void setUp(int i, int length) {
+        firstRow = i - radius;
+        int rowsToRead = getRows() + 2 * radius;
+        channels = new int[CHANNELS][rowsToRead][length];
+        for (int k = 0; k < rowsToRead; k++) {
+            Color[] row = originalPixels[firstRow + k];
+            for (int j = 0; j < length; j++) {
+                channels[0][k][j] = toLevel(row[j].getRed());
+                channels[1][k][j] = toLevel(row[j].getGreen());
+                channels[2][k][j] = toLevel(row[j].getBlue());
+            }
+        }
+        columns = new short[CHANNELS][length * LEVELS];
+        coarseColumns = new short[CHANNELS][length * COARSE_BINS];
+        for (int c = 0; c < CHANNELS; c++) {
+            for (int k = 0; k <= 2 * radius; k++) {
+                int[] row = channels[c][k];
+                for (int j = 0; j < length; j++) {
+                    add(c, j, row[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Slides the neighbourhood histogram along the current row and finds the rank value at each position.
+     * @param c The channel.
+     * @param length Length of the rows.
+     * @return The filtered values of the channel.
+     */
+    private int[] filterChannel(int c, int length) {
+        short[] fine = columns[c];
+        short[] coarse = coarseColumns[c];
+        int[] kernel = new int[LEVELS];
+        int[] coarseKernel = new int[COARSE_BINS];
+        // Position for which the fine bins of each coarse bin of the kernel are up to date, -1 if never.
+        int[] updatedAt = new int[COARSE_BINS];
+        Arrays.fill(updatedAt, -1);
+        // Neighbourhood of the first output position: columns 0 to 2 * radius.
+        for (int j = 0; j <= 2 * radius; j++) {
+            addColumn(coarseKernel, 0, coarse, j * COARSE_BINS, COARSE_BINS, 1);
+        }
+        int[] values = new int[length - 2 * radius];
+        for (int j = 0; j < values.length; j++) {
+            if (j > 0) {
+                // Column j - 1 leaves the neighbourhood, column j + 2 * radius enters it.
+                addColumn(coarseKernel, 0, coarse, (j - 1) * COARSE_BINS, COARSE_BINS, -1);
+                addColumn(coarseKernel, 0, coarse, (j + 2 * radius) * COARSE_BINS, COARSE_BINS, 1);
+            }
+            values[j] = findRank(fine, j, kernel, coarseKernel, updatedAt);
+        }
+        return values;
+    }
+
+    /**
+     * Finds the value at the rank position in the neighbourhood histogram. The fine bins of the coarse bin
+     * that holds the rank are brought up to date first.
+     * @param fine Fine column histograms of the channel.
+     * @param j Position of the neighbourhood (index of its first column).
+     * @param kernel Fine histogram of the neighbourhood.
+     * @param coarseKernel Coarse histogram of the neighbourhood.
+     * @param updatedAt Position for which the fine bins of each coarse bin are up to date.
+     * @return The value.
+     */
+    private int findRank(short[] fine, int j, int[] kernel, int[] coarseKernel, int[] updatedAt) {
+        int count = 0;
+        int bin = 0;
+        while (count + coarseKernel[bin] <= rank) {
+            count += coarseKernel[bin];
+            bin++;
+        }
+        int level = bin * FINE_BINS;
+        updateFineBins(fine, j, bin, kernel, updatedAt);
+        while (count + kernel[level] <= rank) {
+            count += kernel[level];
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Brings the fine bins of one coarse bin of the neighbourhood histogram up to date for the given position,
+     * either by sliding them from the position where they were last updated or, if that would add and subtract
+     * more column histograms, by adding the column histograms of the neighbourhood from scratch.
+     * @param fine Fine column histograms of the channel.
+     * @param j Position of the neighbourhood (index of its first column).
+     * @param bin The coarse bin.
+     * @param kernel Fine histogram of the neighbourhood.
+     * @param updatedAt Position for which the fine bins of each coarse bin are up to date.
+     */
+    private void updateFineBins(short[] fine, int j, int bin, int[] kernel, int[] updatedAt) {
+        int last = updatedAt[bin];
+        int offset = bin * FINE_BINS;
+        if (last < 0 || 2 * (j - last) > 2 * radius + 1) {
+            Arrays.fill(kernel, offset, offset + FINE_BINS, 0);
+            for (int p = j; p <= j + 2 * radius; p++) {
+                addColumn(kernel, offset, fine, p * LEVELS + offset, FINE_BINS, 1);
+            }
+        }
+        else {
+            for (int p = last + 1; p <= j; p++) {
+                addColumn(kernel, offset, fine, (p - 1) * LEVELS + offset, FINE_BINS, -1);
+                addColumn(kernel, offset, fine, (p + 2 * radius) * LEVELS + offset, FINE_BINS, 1);
+            }
+        }
+        updatedAt[bin] = j;
+    }
+
+    /**
+     * Adds (or subtracts) a column histogram (or a part of it) to the neighbourhood histogram.
+     * @param kernel The neighbourhood histogram.
+     * @param kernelOffset Index of the first bin to update in the neighbourhood histogram.
+     * @param column Column histograms.
+     * @param offset Index of the first bin to add in the column histograms.
+     * @param bins Number of bins to add.
+     * @param sign 1 to add, -1 to subtract.
+     */
+    private static void addColumn(int[] kernel, int kernelOffset, short[] column, int offset, int bins, int sign) {
+        for (int v = 0; v < bins; v++) {
+            kernel[kernelOffset + v] += sign * column[offset + v];
+        }
+    }
+
+    private void add(int c, int j, int level) {
+        columns[c][j * LEVELS + level]++;
+        coarseColumns[c][j * COARSE_BINS + level / FINE_BINS]++;
+    }
+
+    private void remove(int c, int j, int level) {
+        columns[c][j * LEVELS + level]--;
+        coarseColumns[c][j * COARSE_BINS + level / FINE_BINS]--;
+    }
+
+    /**
+     * Converts a colour value in the range [0,1] to an 8-bit level.
+     * @param value The colour value.
+     * @return The level in the range [0,255].
+     */
+    private static int toLevel(double value) {
+        return (int) Math.round(clampRGB(value) * (LEVELS - 1));
+    }
+}
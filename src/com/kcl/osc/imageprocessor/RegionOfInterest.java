@@ -0,0 +1,121 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * This class represents a rectangular region of interest (ROI) of an image.
+ * When regions of interest are given to the ImageProcessorMT, only the pixels inside those
+ * regions (plus the halo required by the filter) are read and filtered.
+ *
+ * Coordinates are given in pixels, x being the column and y being the row of the top left corner.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.0
+ */
+public class RegionOfInterest {
+
+    // Column of the top left corner of the region.
+    private final int x;
+    // Row of the top left corner of the region.
+    private final int y;
+    // Width of the region in pixels.
+    private final int width;
+    // Height of the region in pixels.
+    private final int height;
+
+    /**
+     * Constructor of the RegionOfInterest.
+     * @param x Column of the top left corner of the region.
+     * @param y Row of the top left corner of the region.
+     * @param width Width of the region in pixels. Must be positive.
+     * @param height Height of the region in pixels. Must be positive.
+     */
+    public RegionOfInterest(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Region of interest must have a positive width and height.");
+        }
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Used to clip this region to the bounds of an image.
+     * @param imageWidth Width of the image.
+     * @param imageHeight Height of the image.
+     * @return The part of this region that lies inside the image, null if there is no such part.
+     */
+    public RegionOfInterest clip(int imageWidth, int imageHeight) {
+        int fromX = Math.max(x, 0);
+        int fromY = Math.max(y, 0);
+        int toX = Math.min(x + width, imageWidth);
+        int toY = Math.min(y + height, imageHeight);
+        if (fromX >= toX || fromY >= toY) {
+            return null;
+        }
+        return new RegionOfInterest(fromX, fromY, toX - fromX, toY - fromY);
+    }
+
+    /**
+     * Used to get the smallest region that contains all the given regions.
+     * @param regions Regions to contain. Must not be empty.
+     * @return The bounding box of the regions.
+     */
+    public static RegionOfInterest boundingBox(RegionOfInterest[] regions) {
+        int fromX = Integer.MAX_VALUE;
+        int fromY = Integer.MAX_VALUE;
+        int toX = Integer.MIN_VALUE;
+        int toY = Integer.MIN_VALUE;
+        for (RegionOfInterest region : regions) {
+            fromX = Math.min(fromX, region.x);
+            fromY = Math.min(fromY, region.y);
+            toX = Math.max(toX, region.x + region.width);
+            toY = Math.max(toY, region.y + region.height);
+        }
+        return new RegionOfInterest(fromX, fromY, toX - fromX, toY - fromY);
+    }
+
+    /**
+     * Used to get the column of the top left corner.
+     * @return x coordinate.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Used to get the row of the top left corner.
+     * @return y coordinate.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Used to get the width of the region.
+     * @return width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Used to get the height of the region.
+     * @return height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Used to get the number of pixels in the region.
+     * @return area in pixels.
+     */
+    public int getArea() {
+        return width * height;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + x + ", " + y + ", " + width + "x" + height + "]";
+    }
+}
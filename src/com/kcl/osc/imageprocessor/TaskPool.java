@@ -1,35 +1,65 @@
 package com.kcl.osc.imageprocessor;
 
+import java.util.LinkedList;
+
 /**
  * This class implements a task pool that is responsible for executing tasks.
  * User provides tasks to the task pool, task pool executes those tasks simultaneously at its best available tempo.
  *
+ * Tasks can be submitted with a timeout. A task whose deadline passes while it waits in the queue is never started,
+ * a running one stops at its next check. The pool can be shut down in two ways: quit() lets the running tasks
+ * finish, quitNow() cancels them. In both cases the tasks still waiting in the queue are cancelled.
+ *
+ * Images smaller than the given number of pixels are not run on their own. Consecutive small images are taken
+ * from the queue together and packed into an ImageBatch, which runs them inline, one after another, in one place
+ * of the pool. A batch takes a fair share of the waiting images (so the other places of the pool are not left idle)
+ * but at most MAX_IMAGES_PER_BATCH of them.
+ *
  * @author Vakaris Paulavicius (Student number: K20062023)
- * @version 1.7
+ * @version 1.9
  */
 public class TaskPool implements Runnable{
 
+    // Largest number of images packed into one batch.
+    public static final int MAX_IMAGES_PER_BATCH = 64;
+
     // A maximum amount of threads the TaskPool can run simultaneously.
     private final int size;
+    // Images with fewer pixels than this are packed into batches. 0 turns the batching off.
+    private final long smallImagePixels;
     // A queue where all the pending tasks are stored.
     private final TaskQueue waitingList;
     // An array tasks that are currently being executed.
     // It is used for continuous checking whether tasks are finished so that
     // their result could be retrieved and new tasks started in their place.
-    private final ImageProcessorMT[] tasksRunning;
+    private final PoolTask[] tasksRunning;
     // Used to follow the number of tasks that are currently being executed.
     private int numberOfTasksRunning;
-    // Is the pool not working.
-    private boolean isShutdown = false;
+    // Is the pool not accepting new tasks.
+    private volatile boolean isShutdown = false;
+    // Whether the running tasks have to be cancelled when the pool is shutdown.
+    private volatile boolean abortRunning = false;
+    // Whether the pool has stopped: it was shutdown and no tasks are running anymore.
+    private volatile boolean isTerminated = false;
 
     /**
      * Constructor of the TaskPool.
      * @param size A maximum amount of threads that the pool can take care of at any given time.
      */
     public TaskPool(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * Constructor of the TaskPool which packs small images into batches.
+     * @param size A maximum amount of threads that the pool can take care of at any given time.
+     * @param smallImagePixels Images with fewer pixels than this are processed in batches. 0 turns the batching off.
+     */
+    public TaskPool(int size, long smallImagePixels) {
         this.size = size;
+        this.smallImagePixels = smallImagePixels;
         numberOfTasksRunning = 0;
-        tasksRunning = new ImageProcessorMT[size];
+        tasksRunning = new PoolTask[size];
         waitingList = new TaskQueue();
     }
 
@@ -41,15 +71,29 @@ public class TaskPool implements Runnable{
         // While the TaskPool is not shutdown, continue to look for finished tasks
         // and if there are any tasks waiting in the queue and there are available space for their execution,
         // start their execution.
-        while(!isShutdown) {
+        while(!isTerminated) {
             checkForFinishedTasks();
-            if(!waitingList.isEmpty()) {
+            if(isShutdown) {
+                // Stop once the running tasks have finished (or have been cancelled).
+                shutdownStep();
+            }
+            else if(!waitingList.isEmpty()) {
                 if(numberOfTasksRunning < size) {
                     // There are tasks waiting in the queue and there is space for execution of new tasks.
                     // Retrieve a new task from the waiting list.
                     ImageProcessorMT task = waitingList.getTask();
                     if(task != null) {
-                        startExecuting(task);
+                        if(task.isCancelled()) {
+                            // Cancelled or timed out while waiting. Release it without starting it.
+                            task.cancel();
+                        }
+                        else if(isSmall(task)) {
+                            // Run it together with the small images that follow it in the queue.
+                            startExecuting(createBatch(task));
+                        }
+                        else {
+                            startExecuting(task);
+                        }
                     }
                 }
                 else {
@@ -70,29 +114,122 @@ public class TaskPool implements Runnable{
      * @param task A new task to submit.
      */
     public void submit(ImageProcessorMT task) {
+        if(isShutdown) {
+            throw new IllegalStateException("Pool was shutdown, no new tasks are accepted.");
+        }
         waitingList.addTask(task);
     }
 
     /**
-     * Used to terminate the task pool.
+     * Used to submit a new task that has to finish within the given time.
+     * The time is counted from the submission, so the time spent in the queue counts too.
+     * @param task A new task to submit.
+     * @param timeoutMillis Time (in ms) within which the task has to finish.
+     */
+    public void submit(ImageProcessorMT task, long timeoutMillis) {
+        task.setDeadline(System.nanoTime() + timeoutMillis * 1_000_000L);
+        submit(task);
+    }
+
+    /**
+     * Used to shutdown the task pool. The tasks that are running are allowed to finish,
+     * the tasks that are waiting in the queue are cancelled.
      */
     public void quit() {
         isShutdown = true;
         System.out.println("Pool was shutdown.");
     }
 
+    /**
+     * Used to shutdown the task pool straight away. The tasks that are running and the tasks that are
+     * waiting in the queue are cancelled.
+     */
+    public void quitNow() {
+        abortRunning = true;
+        isShutdown = true;
+        System.out.println("Pool was shutdown, running tasks are cancelled.");
+    }
+
+    /**
+     * Used to check whether the pool has stopped: it was shutdown and no tasks are running anymore.
+     * @return true if terminated.
+     */
+    public boolean isTerminated() {
+        return isTerminated;
+    }
+
     //       ==========   PRIVATE METHODS   ==========
 
+    /**
+     * Used to take one step of the shutdown. Cancels the waiting tasks (and the running ones if the pool is
+     * shutdown with quitNow()) and terminates the pool once no tasks are running.
+     */
+    private void shutdownStep() {
+        for(ImageProcessorMT task : waitingList.removeAll()) {
+            task.cancel();
+        }
+        if(abortRunning) {
+            for(PoolTask task : tasksRunning) {
+                if(task != null) {
+                    task.cancel();
+                }
+            }
+        }
+        if(numberOfTasksRunning == 0) {
+            isTerminated = true;
+        }
+    }
+
+    /**
+     * Used to check whether the image is small enough to be processed in a batch.
+     * @param task The image processor.
+     * @return true if the image is small.
+     */
+    private boolean isSmall(ImageProcessorMT task) {
+        return task.getImageArea() < smallImagePixels;
+    }
+
+    /**
+     * Used to pack the given small image and the small images that directly follow it in the queue into a batch.
+     * The batch takes its share of the waiting images so that the other places of the pool get work too.
+     * The images that were cancelled while waiting are released instead.
+     * @param first The first image of the batch, already taken from the queue.
+     * @return The batch.
+     */
+    private ImageBatch createBatch(ImageProcessorMT first) {
+        // The waiting images including the first one, divided between the places of the pool (rounded up).
+        int waiting = waitingList.size() + 1;
+        int share = (waiting + size - 1) / size;
+        int limit = Math.min(MAX_IMAGES_PER_BATCH, share);
+        LinkedList<ImageProcessorMT> images = new LinkedList<>();
+        images.addLast(first);
+        while(images.size() < limit) {
+            // Only this thread takes tasks from the queue, so the peeked task is the one taken.
+            ImageProcessorMT next = waitingList.peekTask();
+            if(next == null || !isSmall(next)) {
+                break;
+            }
+            waitingList.getTask();
+            if(next.isCancelled()) {
+                next.cancel();
+            }
+            else {
+                images.addLast(next);
+            }
+        }
+        return new ImageBatch(images);
+    }
+
     /**
      * Used to start executing a new task.
      * This method is invoked by the run() method when there are tasks in the waiting list
      * and a place for the execution of a new task is found.
      * @param task Task which to start executing.
      */
-    private void startExecuting(ImageProcessorMT task) {
+    private void startExecuting(PoolTask task) {
         for(int i = 0; i < tasksRunning.length; i ++) {
             // Find an unoccupied place in the array of currently running tasks.
-            // All the taken spots will have an object of type ImageProcessorMT stored in them.
+            // All the taken spots will have an image processor or a batch stored in them.
             // Free spots will be null.
             if(tasksRunning[i] == null) {
                 tasksRunning[i] = task;
@@ -108,7 +245,7 @@ public class TaskPool implements Runnable{
      * Used to start the thread which will be executing the task.
      * @param task A task that is to be executed.
      */
-    private void startThread(ImageProcessorMT task) {
+    private void startThread(PoolTask task) {
         Thread thread = new Thread(task);
         thread.start();
     }
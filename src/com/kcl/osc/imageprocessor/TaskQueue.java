@@ -8,7 +8,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * and lets the user put and remove tasks from it safely, with the help of the  reentrant lock.
  *
  * @author Vakaris Paulavicius (Student number: K20062023)
- * @version 1.2
+ * @version 1.4
  */
 public class TaskQueue {
     // A lock to prevent multiple threads from modifying the waiting list simultaneously.
@@ -60,6 +60,39 @@ public class TaskQueue {
         return task;
     }
 
+    /**
+     * Used to get the first task of the queue without removing it.
+     * @return The first task of the queue, null if the queue is empty.
+     */
+    public ImageProcessorMT peekTask() {
+        // Lock the queue preventing multiple accesses.
+        lock.lock();
+        try {
+            return waitingList.peekFirst();
+        } finally {
+            // Unlock the queue.
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Used to remove all the tasks from the queue and return them.
+     * @return The tasks that were in the queue, in the order they were added.
+     */
+    public LinkedList<ImageProcessorMT> removeAll() {
+        // Lock the queue preventing multiple accesses.
+        lock.lock();
+        LinkedList<ImageProcessorMT> tasks = new LinkedList<>();
+        try {
+            tasks.addAll(waitingList);
+            waitingList.clear();
+        } finally {
+            // Unlock the queue.
+            lock.unlock();
+        }
+        return tasks;
+    }
+
     /**
      * Used to get the amount of tasks in the queue.
      * @return The size of the queue.
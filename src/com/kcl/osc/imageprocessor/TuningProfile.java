@@ -0,0 +1,77 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * This class holds the concurrency settings used to process images of one size class with one filter:
+ * how many images are processed at the same time (inter-image parallelism), how many rows of one image
+ * are filtered at the same time (intra-image parallelism) and how many rows one slice holds (tile size).
+ *
+ * Profiles are chosen and refined by the AutoTuner.
+ *
+ * @author Vakaris Paulavicius (Student number: K20062023)
+ * @version 1.0
+ */
+public class TuningProfile {
+
+    // Profile used when no tuning was done. Matches the settings the application always used before tuning.
+    public static final TuningProfile DEFAULT = new TuningProfile(10, 32, 1);
+
+    // Maximum number of images processed at the same time by the TaskPool.
+    private final int poolSize;
+    // Maximum number of slices of one image filtered at the same time.
+    private final int innerProcessors;
+    // Number of consecutive rows one slice holds.
+    private final int rowsPerSlice;
+
+    /**
+     * Constructor of the TuningProfile.
+     * @param poolSize Maximum number of images processed at the same time.
+     * @param innerProcessors Maximum number of slices of one image filtered at the same time.
+     * @param rowsPerSlice Number of consecutive rows one slice holds.
+     */
+    public TuningProfile(int poolSize, int innerProcessors, int rowsPerSlice) {
+        if (poolSize <= 0 || innerProcessors <= 0 || rowsPerSlice <= 0) {
+            throw new IllegalArgumentException("Tuning profile values must be positive.");
+        }
+        this.poolSize = poolSize;
+        this.innerProcessors = innerProcessors;
+        this.rowsPerSlice = rowsPerSlice;
+    }
+
+    /**
+     * Used to get the number of images processed at the same time.
+     * @return pool size.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Used to get the number of slices of one image filtered at the same time.
+     * @return number of inner processors.
+     */
+    public int getInnerProcessors() {
+        return innerProcessors;
+    }
+
+    /**
+     * Used to get the number of rows in one slice.
+     * @return rows per slice.
+     */
+    public int getRowsPerSlice() {
+        return rowsPerSlice;
+    }
+
+    /**
+     * Used to get a copy of this profile with a different slice height.
+     * @param rowsPerSlice New number of rows in one slice.
+     * @return The new profile.
+     */
+    public TuningProfile withRowsPerSlice(int rowsPerSlice) {
+        return new TuningProfile(poolSize, innerProcessors, rowsPerSlice);
+    }
+
+    @Override
+    public String toString() {
+        return "pool size " + poolSize + ", inner processors " + innerProcessors + ", rows per slice " + rowsPerSlice;
+    }
+}